@@ -0,0 +1,63 @@
+package com.dn15.websocket.bench;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dn15.websocket.util.AcceptKey;
+import com.dn15.websocket.util.Base64;
+
+/**
+ * Measures the Sec-WebSocket-Accept computation of a handshake: the former
+ * MessageDigest.getInstance / Base64.encodeBytes path against
+ * {@link AcceptKey}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptKeyBenchmark {
+
+    private String key = "dGhlIHNhbXBsZSBub25jZQ==";
+
+    @Setup
+    public void setup() {
+        if (!legacy(key).equals(AcceptKey.compute(key)))
+            throw new IllegalStateException("results differ");
+    }
+
+    @Benchmark
+    public String legacy() {
+        return legacy(key);
+    }
+
+    @Benchmark
+    public String acceptKey() {
+        return AcceptKey.compute(key);
+    }
+
+    /** the computation as Draft_10 did it before {@link AcceptKey} */
+    static String legacy(String in) {
+        String acc = in.trim() + AcceptKey.GUID;
+        MessageDigest sh1;
+        try {
+            sh1 = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return Base64.encodeBytes(sh1.digest(acc.getBytes()));
+    }
+}
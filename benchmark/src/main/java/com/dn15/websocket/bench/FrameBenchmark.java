@@ -0,0 +1,98 @@
+package com.dn15.websocket.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dn15.websocket.Draft_10;
+import com.dn15.websocket.Draft_17;
+import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.MessageImpl;
+import com.dn15.websocket.message.Message.Opcode;
+import com.dn15.websocket.util.BufferPool;
+
+/**
+ * Encodes and decodes a single binary frame with {@link Draft_10} and
+ * {@link Draft_17}.<br>
+ * A masked frame is what a client sends ( and a server decodes ), an unmasked
+ * one is what a server sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({ "Draft_10", "Draft_17" })
+    public String draft;
+
+    @Param({ "10", "125", "65536", "1048576" })
+    public int size;
+
+    @Param({ "true", "false" })
+    public boolean masked;
+
+    private Draft_10 protocol;
+
+    private ByteBuffer payload;
+
+    private Message message;
+
+    /** the encoded frame, decoded over and over */
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() throws WsIOException {
+        protocol = "Draft_17".equals(draft) ? new Draft_17() : new Draft_10();
+        // drafts mask the frames they create in the client role only
+        protocol.setParseMode(masked ? Role.CLIENT : Role.SERVER);
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        payload = ByteBuffer.wrap(bytes);
+        message = new MessageImpl(Opcode.BINARY);
+        message.setFin(true);
+        message.setPayload(payload.duplicate());
+        ByteBuffer encoded = protocol.createBinaryFrame(message);
+        frame = ByteBuffer.allocate(encoded.remaining());
+        frame.put(encoded);
+        frame.flip();
+        BufferPool.getDefault().release(encoded);
+    }
+
+    @Benchmark
+    public int createBinaryFrame() throws WsIOException {
+        // encoding consumes the payload
+        message.setPayload(payload.duplicate());
+        ByteBuffer encoded = protocol.createBinaryFrame(message);
+        int length = encoded.remaining();
+        // a written frame is handed back to the pool as well
+        BufferPool.getDefault().release(encoded);
+        return length;
+    }
+
+    /**
+     * The payload is unmasked in place, so every second invocation sees a
+     * scrambled payload. That does not matter for binary frames.
+     */
+    @Benchmark
+    public List<Message> translateFrame() throws WsIOException {
+        return protocol.translateFrame(frame.duplicate());
+    }
+}
@@ -0,0 +1,48 @@
+package com.dn15.websocket.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dn15.websocket.WebSocketProtocol;
+import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.message.Handshake;
+import com.dn15.websocket.util.CharsetStringConverter;
+
+/**
+ * Parses the opening handshake of a browser with
+ * {@link WebSocketProtocol#translateHandshakeHttp(ByteBuffer, Role)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    private static final String REQUEST = "GET /chat HTTP/1.1\r\n" + "Host: server.example.com:8887\r\n"
+            + "Connection: Upgrade\r\n" + "Pragma: no-cache\r\n" + "Cache-Control: no-cache\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "Upgrade: websocket\r\n" + "Origin: http://example.com\r\n" + "Sec-WebSocket-Version: 13\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n" + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Cookie: session=8c2f0d9e4b; theme=dark\r\n" + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n\r\n";
+
+    private final ByteBuffer request = ByteBuffer.wrap(CharsetStringConverter.asciiBytes(REQUEST));
+
+    @Benchmark
+    public Handshake translateHandshakeHttp() throws WsIOException {
+        return WebSocketProtocol.translateHandshakeHttp(request.duplicate(), Role.SERVER);
+    }
+}
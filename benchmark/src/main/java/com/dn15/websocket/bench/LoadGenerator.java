@@ -0,0 +1,405 @@
+package com.dn15.websocket.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dn15.chatserver.ChatServer;
+import com.dn15.websocket.Draft_17;
+import com.dn15.websocket.ServerEndpoint;
+import com.dn15.websocket.Session;
+import com.dn15.websocket.SocketChannelReader;
+import com.dn15.websocket.WebSocketImpl;
+import com.dn15.websocket.WebSocketProtocol;
+import com.dn15.websocket.message.Handshake;
+import com.dn15.websocket.message.HandshakeFlatClient;
+import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.MessageImpl;
+import com.dn15.websocket.util.BufferPool;
+import com.dn15.websocket.util.Histogram;
+import com.dn15.websocket.util.Log;
+import com.dn15.websocketapi.CloseReason.CloseCode;
+import com.dn15.websocketapi.DecodeException;
+
+/**
+ * Opens many client connections to a ChatServer, lets them chat at a fixed
+ * rate and reports throughput and fan-out latency.<br>
+ * The connections are split into rooms of <tt>roomSize</tt> connections,
+ * each room connecting to the resource <tt>/room/&lt;n&gt;</tt>. Every
+ * message carries the time it was sent, so the latency from sending it until
+ * each member of the room received it is recorded.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.dn15.websocket.bench.LoadGenerator [name=value ...]
+ * </pre>
+ *
+ * Options ( defaults in brackets ):
+ * <ul>
+ * <li>host [localhost], port [8887]</li>
+ * <li>embedded [true]: start a ChatServer without console output in this
+ * process</li>
+ * <li>connections [100], roomSize [10]</li>
+ * <li>rate [1000]: messages sent per second by all connections together</li>
+ * <li>payload [128]: bytes per message</li>
+ * <li>duration [10], warmup [2]: seconds measured and seconds ignored before</li>
+ * <li>threads [2]: client selector threads</li>
+ * <li>verbose [false]: log the library at debug level. Only warnings are
+ * logged by default because the logging would dominate the measurement.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    String host = "localhost";
+    int port = 8887;
+    boolean embedded = true;
+    int connections = 100;
+    int roomSize = 10;
+    int rate = 1000;
+    int payload = 128;
+    int duration = 10;
+    int warmup = 2;
+    int threads = 2;
+    boolean verbose = false;
+
+    final Histogram latency = new Histogram();
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong bytesRead = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong opened = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    /** whether the warmup is over and results are recorded */
+    volatile boolean measuring = false;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq == -1)
+                throw new IllegalArgumentException("options are given as name=value: " + arg);
+            g.option(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        g.run();
+        System.exit(0);
+    }
+
+    void option(String name, String value) {
+        if (name.equals("host"))
+            host = value;
+        else if (name.equals("port"))
+            port = Integer.parseInt(value);
+        else if (name.equals("embedded"))
+            embedded = Boolean.parseBoolean(value);
+        else if (name.equals("connections"))
+            connections = Integer.parseInt(value);
+        else if (name.equals("roomSize"))
+            roomSize = Integer.parseInt(value);
+        else if (name.equals("rate"))
+            rate = Integer.parseInt(value);
+        else if (name.equals("payload"))
+            payload = Integer.parseInt(value);
+        else if (name.equals("duration"))
+            duration = Integer.parseInt(value);
+        else if (name.equals("warmup"))
+            warmup = Integer.parseInt(value);
+        else if (name.equals("threads"))
+            threads = Integer.parseInt(value);
+        else if (name.equals("verbose"))
+            verbose = Boolean.parseBoolean(value);
+        else
+            throw new IllegalArgumentException("unknown option " + name);
+    }
+
+    void run() throws Exception {
+        PrintStream out = System.out;
+        Log.setLevel(verbose ? Log.Level.DEBUG : Log.Level.WARN);
+        if (embedded) {
+            new RoomChatServer(new InetSocketAddress(host, port)).start();
+            Thread.sleep(500);
+        }
+
+        ClientLoop[] loops = new ClientLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new ClientLoop((double) rate / threads);
+        for (int i = 0; i < connections; i++)
+            loops[i % threads].connect("/room/" + i / roomSize);
+        for (ClientLoop loop : loops) {
+            Thread t = new Thread(loop, "LoadGenerator-" + loop.hashCode());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (opened.get() + failed.get() < connections && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        out.println(opened.get() + " of " + connections + " connections open, " + failed.get() + " failed");
+        for (ClientLoop loop : loops)
+            loop.sending = true;
+
+        Thread.sleep(warmup * 1000L);
+        latency.reset();
+        sent.set(0);
+        received.set(0);
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        measuring = false;
+
+        long open = Math.max(1, opened.get());
+        out.println(String.format("sent     %,.0f msgs/s", sent.get() / seconds));
+        out.println(String.format("received %,.0f msgs/s ( fan-out of %d per room )", received.get() / seconds,
+                roomSize));
+        out.println(String.format("latency  p50 %s  p99 %s  p999 %s  max %s",
+                micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99)),
+                micros(latency.getValueAtPercentile(99.9)), micros(latency.getMax())));
+        out.println(String.format("bytes    %,d read / %,d written per connection", bytesRead.get() / open,
+                bytesWritten.get() / open));
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%,.1fus", nanos / 1000.0);
+    }
+
+    /**
+     * Builds a text message of <var>size</var> bytes which starts with the
+     * time it is sent at.
+     */
+    static String message(long now, int size) {
+        StringBuilder b = new StringBuilder(Math.max(size, 24));
+        b.append(now).append(' ');
+        while (b.length() < size)
+            b.append('x');
+        return b.toString();
+    }
+
+    /**
+     * A selector loop owning a share of the client connections. The loop
+     * reads, flushes and sends, so a connection is only ever touched by its
+     * loop.
+     */
+    class ClientLoop extends ServerEndpoint implements Runnable {
+
+        private final Selector selector;
+
+        /** nanoseconds between two messages sent by this loop */
+        private final long interval;
+
+        private final List<WebSocketImpl> open = new ArrayList<WebSocketImpl>();
+
+        volatile boolean sending = false;
+
+        ClientLoop(double rate) throws IOException {
+            selector = Selector.open();
+            interval = rate <= 0 ? Long.MAX_VALUE : (long) (1e9 / rate);
+        }
+
+        void connect(String resource) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(new InetSocketAddress(host, port));
+            // the loop has not been started yet, so registering does not block
+            channel.register(selector, SelectionKey.OP_CONNECT, resource);
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            int turn = 0;
+            try {
+                while (true) {
+                    long wait = sending ? Math.max(1, (next - System.nanoTime()) / 1000000) : 100;
+                    selector.select(wait);
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    Iterator<SelectionKey> it = keys.iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                    // catch up with the rate by sending every message that is due
+                    long now = System.nanoTime();
+                    while (sending && !open.isEmpty() && next <= now) {
+                        WebSocketImpl ws = open.get(turn++ % open.size());
+                        if (ws.isOpen()) {
+                            ws.send(message(System.nanoTime(), payload));
+                            if (measuring)
+                                sent.incrementAndGet();
+                        }
+                        next += interval;
+                    }
+                    if (!sending)
+                        next = System.nanoTime();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    HandshakeFlatClient request = new HandshakeFlatClient();
+                    request.setResourceDescriptor((String) key.attachment());
+                    request.put("Host", host + ":" + port);
+                    WebSocketImpl ws = new WebSocketImpl(this, new Draft_17());
+                    ws.key = key;
+                    ws.channel = channel;
+                    key.attach(ws);
+                    key.interestOps(SelectionKey.OP_READ);
+                    ws.startHandshake(request);
+                    return;
+                }
+                WebSocketImpl ws = (WebSocketImpl) key.attachment();
+                if (key.isReadable()) {
+                    ByteBuffer buf;
+                    while (key.isValid() && (buf = SocketChannelReader.read(ws, channel)) != null) {
+                        if (measuring)
+                            bytesRead.addAndGet(buf.remaining());
+                        try {
+                            ws.decode(buf);
+                        } finally {
+                            BufferPool.getDefault().release(buf);
+                        }
+                    }
+                }
+                if (key.isValid() && key.isWritable())
+                    flush(ws);
+            } catch (IOException e) {
+                // includes a rejected handshake
+                key.cancel();
+                failed.incrementAndGet();
+            }
+        }
+
+        private void flush(WebSocketImpl ws) throws IOException {
+            long queued = ws.getQueuedBytes();
+            boolean done = SocketChannelReader.batch(ws, ws.channel);
+            if (measuring)
+                bytesWritten.addAndGet(queued - ws.getQueuedBytes());
+            ws.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void onWriteDemand(Session conn) {
+            WebSocketImpl ws = (WebSocketImpl) conn;
+            try {
+                if (ws.key.isValid())
+                    flush(ws);
+            } catch (IOException e) {
+                ws.key.cancel();
+            }
+        }
+
+        @Override
+        public void onOpen(Session session) {
+            open.add((WebSocketImpl) session);
+            opened.incrementAndGet();
+        }
+
+        @Override
+        public void onClose(Session session, String closeReason) {
+            open.remove(session);
+        }
+
+        @Override
+        public void onMessage(Session conn, String message) {
+            int space = message.indexOf(' ');
+            if (space <= 0)
+                return;
+            long sentAt;
+            try {
+                sentAt = Long.parseLong(message.substring(0, space));
+            } catch (NumberFormatException e) {
+                return; // e.g. the announcements of a plain ChatServer
+            }
+            if (measuring) {
+                latency.record(System.nanoTime() - sentAt);
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMessage(Session conn, ByteBuffer blob) {
+        }
+
+        @Override
+        public Handshake onHandshakeReceived(Session conn, WebSocketProtocol draft, Handshake request)
+                throws DecodeException {
+            return null;
+        }
+
+        @Override
+        public void onCloseInitiated(Session ws, CloseCode code, String reason) {
+        }
+
+        @Override
+        public void onClosing(Session ws, CloseCode code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onPing(Session conn, Message f) {
+            Message pong = new MessageImpl(f);
+            pong.setOptcode(Message.Opcode.PONG);
+            conn.sendMessage(pong);
+        }
+
+        @Override
+        public void onPong(Session conn, Message f) {
+        }
+
+        @Override
+        public InetSocketAddress getLocalSocketAddress(Session conn) {
+            return (InetSocketAddress) ((SocketChannel) ((WebSocketImpl) conn).channel).socket()
+                    .getLocalSocketAddress();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteSocketAddress(Session conn) {
+            return (InetSocketAddress) ((SocketChannel) ((WebSocketImpl) conn).channel).socket()
+                    .getRemoteSocketAddress();
+        }
+    }
+
+    /**
+     * ChatServer which keeps every session in the room of its resource and
+     * relays the messages without the announcements of the ChatServer.
+     */
+    static class RoomChatServer extends ChatServer {
+
+        RoomChatServer(InetSocketAddress address) {
+            super(address);
+        }
+
+        @Override
+        public void onOpen(Session conn) {
+            getRooms().join(conn, conn.getResourceDescriptor());
+        }
+
+        @Override
+        public void onClose(Session conn, String closeReason) {
+            getRooms().leaveAll(conn);
+        }
+
+        @Override
+        public void onMessage(Session conn, String message) {
+            publish(conn.getResourceDescriptor(), message);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.dn15.websocket.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.MessageImpl;
+import com.dn15.websocket.message.Message.Opcode;
+import com.dn15.websocket.util.CharsetStringConverter;
+
+/**
+ * Measures what happens to a received message before it is delivered:
+ * decoding its text and gluing fragments together.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @State(Scope.Thread)
+    public static class Text {
+
+        @Param({ "10", "125", "65536", "1048576" })
+        public int size;
+
+        /** whether the text contains multi byte characters */
+        @Param({ "false", "true" })
+        public boolean multibyte;
+
+        private ByteBuffer utf8;
+
+        @Setup
+        public void setup() {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'a');
+            if (multibyte) {
+                for (int i = 0; i < size; i += 8)
+                    chars[i] = '\u00e9';
+            }
+            utf8 = ByteBuffer.wrap(CharsetStringConverter.utf8Bytes(new String(chars)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Fragments {
+
+        /** size of the whole message */
+        @Param({ "10", "125", "65536", "1048576" })
+        public int size;
+
+        @Param({ "16" })
+        public int count;
+
+        private Message[] parts;
+
+        @Setup
+        public void setup() throws WsIOException {
+            parts = new Message[count];
+            int partsize = Math.max(1, size / count);
+            for (int i = 0; i < count; i++) {
+                parts[i] = new MessageImpl(i == 0 ? Opcode.BINARY : Opcode.CONTINUOUS);
+                parts[i].setFin(i == count - 1);
+                parts[i].setPayload(ByteBuffer.allocate(partsize));
+            }
+        }
+    }
+
+    @Benchmark
+    public String stringUtf8(Text text) throws WsIOException {
+        return CharsetStringConverter.stringUtf8(text.utf8.duplicate());
+    }
+
+    @Benchmark
+    public Message append(Fragments fragments) throws WsIOException {
+        Message[] parts = fragments.parts;
+        Message message = new MessageImpl(parts[0]);
+        for (int i = 1; i < parts.length; i++)
+            message.append(parts[i]);
+        return message;
+    }
+}
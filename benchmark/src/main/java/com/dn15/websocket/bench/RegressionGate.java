@@ -0,0 +1,109 @@
+package com.dn15.websocket.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two benchmark runs written with <tt>-rf csv</tt> and fails if a
+ * benchmark got slower than allowed:
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar -rf csv -rff baseline.csv
+ * ... change something ...
+ * java -jar target/benchmarks.jar -rf csv -rff current.csv
+ * java -cp target/benchmarks.jar com.dn15.websocket.bench.RegressionGate baseline.csv current.csv [tolerance]
+ * </pre>
+ * 
+ * The tolerance is the allowed slowdown as a fraction and defaults to
+ * {@link #TOLERANCE}. Only average time ( lower is better ) and throughput (
+ * higher is better ) scores are compared; benchmarks missing in one of the
+ * runs are reported but do not fail the gate.
+ */
+public class RegressionGate {
+
+    public static double TOLERANCE = 0.10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: RegressionGate <baseline.csv> <current.csv> [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : TOLERANCE;
+        Map<String, String[]> baseline = read(args[0]);
+        Map<String, String[]> current = read(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String, String[]> e : current.entrySet()) {
+            String[] before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.println("new        " + e.getKey());
+                continue;
+            }
+            String mode = e.getValue()[1];
+            double was = Double.parseDouble(before[4]);
+            double is = Double.parseDouble(e.getValue()[4]);
+            // how much slower the current run is, negative if it is faster
+            double slowdown = "thrpt".equals(mode) ? was / is - 1 : is / was - 1;
+            boolean regressed = slowdown > tolerance;
+            if (regressed)
+                regressions++;
+            System.out.println(String.format("%-10s %s: %.3f -> %.3f %s (%+.1f%%)", regressed ? "REGRESSED" : "ok",
+                    e.getKey(), was, is, e.getValue()[6], slowdown * 100));
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key))
+                System.out.println("missing    " + key);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + tolerance * 100 + "%");
+            System.exit(1);
+        }
+    }
+
+    /** @return the rows of a jmh csv result keyed by benchmark, mode and parameters */
+    static Map<String, String[]> read(String file) throws IOException {
+        Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String[] header = split(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                String[] row = split(line);
+                StringBuilder key = new StringBuilder(row[0]).append(' ').append(row[1]);
+                // columns 7 and above are "Param: name"
+                for (int i = 7; i < row.length && i < header.length; i++) {
+                    if (row[i].length() > 0)
+                        key.append(' ').append(header[i].replace("Param: ", "")).append('=').append(row[i]);
+                }
+                rows.put(key.toString(), row);
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    private static String[] split(String line) {
+        List<String> cells = new ArrayList<String>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else
+                cell.append(c);
+        }
+        cells.add(cell.toString());
+        return cells.toArray(new String[cells.size()]);
+    }
+}
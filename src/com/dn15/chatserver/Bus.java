@@ -0,0 +1,389 @@
+package com.dn15.chatserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dn15.websocket.util.Log;
+import com.dn15.websocket.util.Metrics;
+
+/**
+ * Carries the messages published on one node to the other nodes of a cluster
+ * of chat servers over plain TCP.<br>
+ * Every node connects to every peer it is given and sends the messages
+ * published by its own sessions once per peer. A node hands a message
+ * received from a peer to its {@link Listener} to be sent to its own sessions
+ * and never passes it on, so every node gets every message exactly once,
+ * however many sessions the other nodes have.<br>
+ * {@link #publish(String, String)} encodes the message once and queues it to
+ * every peer without blocking; a full queue drops the message. A writer thread
+ * per peer sends everything queued meanwhile with a single write and
+ * reconnects after {@link #RECONNECT_DELAY} milliseconds when the connection
+ * fails. A reader thread per incoming connection decodes the messages.
+ *
+ * <pre>
+ * connection: magic(4) message*
+ * message:    length(4) roomlength(2) room text
+ * </pre>
+ */
+public class Bus {
+
+    /** Max number of bytes sent to a peer with one write */
+    public static int BATCH_BYTES = 64 * 1024;
+
+    /** Max number of messages queued per peer, further messages are dropped */
+    public static int MAX_QUEUED = 64 * 1024;
+
+    /** Max length of a message received */
+    public static int MAX_MESSAGE = 16 * 1024 * 1024;
+
+    /** Milliseconds to wait before connecting again to a peer */
+    public static int RECONNECT_DELAY = 1000;
+
+    private static final int MAGIC = 0x43484231;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Receives the messages published on the other nodes */
+    public interface Listener {
+        void onPublish(String room, String text);
+    }
+
+    private final Listener listener;
+
+    private final ServerSocketChannel server;
+
+    private final List<Peer> peers = new ArrayList<Peer>();
+
+    private final List<SocketChannel> incoming = Collections.synchronizedList(new ArrayList<SocketChannel>());
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile boolean closed = false;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Listens for peers on <var>address</var> and connects to
+     * <var>peerAddresses</var>.
+     */
+    public Bus(InetSocketAddress address, List<InetSocketAddress> peerAddresses, Listener listener) throws IOException {
+        if (listener == null)
+            throw new IllegalArgumentException("listener must not be null");
+        this.listener = listener;
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address);
+        for (InetSocketAddress a : peerAddresses)
+            peers.add(new Peer(a));
+    }
+
+    /** Starts accepting and connecting to the peers */
+    public void start() {
+        if (!threads.isEmpty())
+            throw new IllegalStateException("the bus can only be started once");
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "BusAcceptor"));
+        for (final Peer p : peers) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    p.run();
+                }
+            }, "BusWriter-" + p.address));
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.getDefault().register("bus.sent", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return sent.sum();
+                }
+            });
+            Metrics.getDefault().register("bus.received", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return received.sum();
+                }
+            });
+            Metrics.getDefault().register("bus.dropped", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return dropped.sum();
+                }
+            });
+        }
+    }
+
+    /** Queues <var>text</var> published to <var>room</var> to every peer */
+    public void publish(String room, String text) {
+        if (peers.isEmpty())
+            return;
+        byte[] r = room.getBytes(UTF8);
+        byte[] t = text.getBytes(UTF8);
+        if (r.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("room name too long");
+        ByteBuffer m = ByteBuffer.allocate(6 + r.length + t.length);
+        m.putInt(2 + r.length + t.length);
+        m.putShort((short) r.length);
+        m.put(r);
+        m.put(t);
+        byte[] message = m.array();
+        for (Peer p : peers) {
+            if (!p.queue.offer(message))
+                dropped.increment();
+        }
+    }
+
+    /** Returns the address peers connect to */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /** Number of messages which have not reached a peer */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Closes all connections. Queued messages are dropped. */
+    public void close() throws InterruptedException {
+        if (closed)
+            return;
+        closed = true;
+        closeQuietly(server);
+        for (Peer p : peers)
+            closeQuietly(p.channel);
+        synchronized (incoming) {
+            for (SocketChannel ch : incoming)
+                closeQuietly(ch);
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+            t.join();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.getDefault().unregister("bus.sent");
+            Metrics.getDefault().unregister("bus.received");
+            Metrics.getDefault().unregister("bus.dropped");
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final SocketChannel ch = server.accept();
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                incoming.add(ch);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        read(ch);
+                    }
+                }, "BusReader-" + ch.getRemoteAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed)
+                    Log.e("Bus accept failed", e);
+            }
+        }
+    }
+
+    private void read(SocketChannel ch) {
+        ByteBuffer in = ByteBuffer.allocate(BATCH_BYTES);
+        try {
+            fill(ch, in, 4);
+            in.flip();
+            if (in.getInt() != MAGIC)
+                throw new IOException("not a bus connection");
+            in.compact();
+            while (!closed) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 2 || length > MAX_MESSAGE)
+                        throw new IOException("invalid message length " + length);
+                    if (in.remaining() < 4 + length)
+                        break;
+                    in.getInt();
+                    deliver(in, length);
+                }
+                // make room for a message longer than the buffer
+                if (in.remaining() >= 4 && 4 + in.getInt(in.position()) > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(in.position()));
+                    bigger.put(in);
+                    in = bigger;
+                } else {
+                    in.compact();
+                }
+                if (ch.read(in) == -1)
+                    throw new EOFException();
+            }
+        } catch (IOException e) {
+            if (!closed)
+                Log.d("Bus connection {} closed: {}", ch, e);
+        } finally {
+            incoming.remove(ch);
+            closeQuietly(ch);
+        }
+    }
+
+    private void deliver(ByteBuffer in, int length) {
+        int roomlength = in.getShort();
+        String room = new String(in.array(), in.arrayOffset() + in.position(), roomlength, UTF8);
+        String text = new String(in.array(), in.arrayOffset() + in.position() + roomlength, length - 2 - roomlength, UTF8);
+        in.position(in.position() + length - 2);
+        received.increment();
+        try {
+            listener.onPublish(room, text);
+        } catch (RuntimeException e) {
+            Log.e("Bus listener failed", e);
+        }
+    }
+
+    private static void fill(SocketChannel ch, ByteBuffer b, int n) throws IOException {
+        while (b.position() < n) {
+            if (ch.read(b) == -1)
+                throw new EOFException();
+        }
+    }
+
+    private static void closeQuietly(Channel ch) {
+        if (ch == null)
+            return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /** The connection to one other node, written by its own thread */
+    private class Peer {
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED);
+        volatile SocketChannel channel;
+
+        private final List<byte[]> batch = new ArrayList<byte[]>();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BATCH_BYTES);
+
+        /** number of messages at the head of the batch which have been written */
+        private int flushed;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void run() {
+            while (!closed) {
+                try {
+                    if (channel == null)
+                        connect();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, 1024);
+                    send();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (closed)
+                        return;
+                    // the messages written before the failure are counted as sent
+                    dropped.add(batch.size() - flushed);
+                    batch.clear();
+                    flushed = 0;
+                    Log.d("Bus connection to {} failed: {}", address, e);
+                    closeQuietly(channel);
+                    channel = null;
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void connect() throws IOException {
+            SocketChannel ch = SocketChannel.open();
+            try {
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ch.connect(address);
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                magic.putInt(0, MAGIC);
+                while (magic.hasRemaining())
+                    ch.write(magic);
+            } catch (IOException e) {
+                closeQuietly(ch);
+                throw e;
+            }
+            channel = ch;
+            if (closed)
+                closeQuietly(ch);
+            Log.d("Bus connected to {}", address);
+        }
+
+        /** Writes the batch, packing as many messages per write as fit */
+        private void send() throws IOException {
+            SocketChannel ch = channel;
+            out.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] m = batch.get(i);
+                if (out.remaining() < m.length && out.position() > 0)
+                    flush(ch, i);
+                if (m.length > out.capacity()) {
+                    ByteBuffer big = ByteBuffer.wrap(m);
+                    while (big.hasRemaining())
+                        ch.write(big);
+                    flush(ch, i + 1);
+                } else {
+                    out.put(m);
+                }
+            }
+            flush(ch, batch.size());
+            batch.clear();
+            flushed = 0;
+        }
+
+        /** Writes the packed messages, which are the batch up to index <var>end</var> */
+        private void flush(SocketChannel ch, int end) throws IOException {
+            out.flip();
+            while (out.hasRemaining())
+                ch.write(out);
+            out.clear();
+            sent.add(end - flushed);
+            flushed = end;
+        }
+    }
+}
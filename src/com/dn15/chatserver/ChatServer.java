@@ -1,30 +1,53 @@
 package com.dn15.chatserver;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.dn15.websocket.Draft_17;
 import com.dn15.websocket.Session;
-import com.dn15.websocket.WebSocketImpl;
 import com.dn15.websocket.WebSocketProtocol;
 import com.dn15.websocket.WebSocketServer;
 import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.extension.PerMessageDeflate;
 import com.dn15.websocket.message.Handshake;
 import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.MessageImpl;
+import com.dn15.websocket.util.BufferPool;
 import com.dn15.websocket.util.CharsetStringConverter;
 import com.dn15.websocket.util.Log;
+import com.dn15.websocket.util.Metrics;
 import com.dn15.websocketapi.DecodeException;
 import com.dn15.websocketapi.CloseReason.CloseCode;
 
 /**
- * A simple WebSocketServer implementation. Keeps track of a "chatroom".
+ * A simple WebSocketServer implementation. Keeps track of chat rooms.<br>
+ * A connection enters the room named by its resource descriptor ( e.g.
+ * <tt>/chat</tt> ). It can enter and leave further rooms by sending
+ * <tt>/join &lt;room&gt;</tt> and <tt>/leave &lt;room&gt;</tt>, everything
+ * else it sends is published to all of its rooms. A connection entering a
+ * room first gets the last messages of the room ( see {@link RoomHistory} ).
+ * With a {@link Journal} set every published message is also written to disk.
+ * With a {@link Bus} set the messages are also published to the rooms of the
+ * same name on the other nodes of the cluster.
  */
 public class ChatServer extends WebSocketServer {
 
+    /** frames the messages kept in the room histories: unmasked and uncompressed */
+    private static final WebSocketProtocol HISTORY_DRAFT = new Draft_17();
+
+    private final Rooms rooms = new Rooms();
+
+    private volatile Journal journal;
+
+    private volatile Bus bus;
+
     public ChatServer(int port) throws UnknownHostException {
         super(new InetSocketAddress("localhost", port));
     }
@@ -35,29 +58,121 @@ public class ChatServer extends WebSocketServer {
 
     @Override
     public void onOpen(Session conn) {
-        this.sendToAll("new connection: " + conn.getResourceDescriptor());
-        System.out.println(conn.getRemoteSocketAddress().getAddress().getHostAddress() + " entered the room!");
+        String room = conn.getResourceDescriptor();
+        rooms.join(conn, room);
+        publish(room, "new connection: " + room);
+        Log.d("{} entered {}", conn.getRemoteSocketAddress(), room);
     }
 
     @Override
     public void onClose(Session conn, String closeReason) {
-        this.sendToAll(conn + " has left the room!");
-        System.out.println(conn + " has left the room!");
+        for (String room : rooms.leaveAll(conn))
+            publish(room, conn + " has left the room!");
+        Log.d("{} has left the room!", conn);
     }
 
     @Override
     public void onMessage(Session conn, String message) {
-        this.sendToAll(message);
-        System.out.println(conn + ": " + message);
+        if (message.startsWith("/join ")) {
+            String room = message.substring(6).trim();
+            if (rooms.join(conn, room))
+                publish(room, conn + " entered " + room);
+        } else if (message.startsWith("/leave ")) {
+            String room = message.substring(7).trim();
+            if (rooms.leave(conn, room))
+                publish(room, conn + " has left " + room);
+        } else {
+            for (String room : rooms.getRooms(conn))
+                publish(room, message);
+        }
+        Log.d("{}: {}", conn, message);
+    }
+
+    /**
+     * Sends <var>text</var> to all members of <var>room</var> on this and
+     * every other node.
+     */
+    public void publish(String room, String text) {
+        Bus b = bus;
+        if (b != null)
+            b.publish(room, text);
+        deliver(room, text);
+    }
+
+    /**
+     * Sends <var>text</var> to the members of <var>room</var> on this node and
+     * keeps it in the history of the room. The members are iterated without
+     * locking the room.
+     */
+    public void deliver(String room, String text) {
+        Room r = rooms.get(room);
+        if (r == null) {
+            Log.d("No client in {}", room);
+            return;
+        }
+        Journal j = journal;
+        if (j != null)
+            j.append(room, text);
+        if (RoomHistory.MAX_MESSAGES > 0) {
+            // framed once for the history and the members
+            Message m = HISTORY_DRAFT.createFrames(text, false).get(0);
+            ByteBuffer payload = m.getPayloadData().duplicate();
+            ByteBuffer frame = HISTORY_DRAFT.createBinaryFrame(m);
+            BufferPool.getDefault().detach(frame);
+            broadcastTo(Message.Opcode.TEXT, payload, HISTORY_DRAFT, frame, r.record(frame));
+        } else {
+            broadcastSnapshot(text, r.getMembers());
+        }
+    }
+
+    public Bus getBus() {
+        return bus;
+    }
+
+    /**
+     * Creates the bus to the other nodes: Listens for them on
+     * <var>address</var> and connects to <var>peers</var>. Must be called
+     * before {@link #start()}, the bus is started with the server.
+     */
+    public void setBus(InetSocketAddress address, List<InetSocketAddress> peers) throws IOException {
+        bus = new Bus(address, peers, new Bus.Listener() {
+            @Override
+            public void onPublish(String room, String text) {
+                deliver(room, text);
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        Bus b = bus;
+        if (b != null)
+            b.start();
+        super.start();
+    }
+
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /** Sets the journal published messages are written to, null for none */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
     }
 
     public void onFragment(Session conn, Message fragment) {
-        System.out.println("received fragment: " + fragment);
+        Log.d("received fragment: {}", fragment);
     }
 
     public static void main(String[] args) {
-        WebSocketImpl.DEBUG = true;
-        int port = 8887; // 843 flash policy port
+        Log.setLevel(Log.Level.DEBUG);
+        // every message goes to the whole room: compress it once for everybody
+        PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER = true;
+        int port = Integer.getInteger("chatserver.port", 8887); // 843 flash policy port
         /*
          * try { port = Integer.parseInt(args[0]); } catch
          * (NumberFormatException ex) { ex.printStackTrace(); }
@@ -65,6 +180,20 @@ public class ChatServer extends WebSocketServer {
         ChatServer s;
         try {
             s = new ChatServer(port);
+            String dir = System.getProperty("chatserver.journal");
+            if (dir != null)
+                s.setJournal(new Journal(new File(dir)));
+            // e.g. -Dchatserver.bus=9001 -Dchatserver.peers=localhost:9002,localhost:9003
+            Integer busPort = Integer.getInteger("chatserver.bus");
+            if (busPort != null) {
+                List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+                for (String peer : System.getProperty("chatserver.peers", "").split(",")) {
+                    int colon = peer.lastIndexOf(':');
+                    if (colon > 0)
+                        peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                }
+                s.setBus(new InetSocketAddress("localhost", busPort), peers);
+            }
 
             s.start();
 
@@ -73,7 +202,28 @@ public class ChatServer extends WebSocketServer {
                 String in = sysin.readLine();
                 if (in.equals("exit")) {
                     s.stop(0);
+                    if (s.getBus() != null)
+                        s.getBus().close();
+                    if (s.getJournal() != null)
+                        s.getJournal().close();
                     break;
+                } else if (in.equals("metrics")) {
+                    System.out.print(Metrics.getDefault().dump());
+                    continue;
+                } else if (in.equals("rooms")) {
+                    System.out.println(s.getRooms().size() + " rooms, " + RoomHistory.getArena().getUsed()
+                            + " histories, " + RoomHistory.getArena().getCapacity() + " bytes off heap");
+                    continue;
+                } else if (in.equals("journal")) {
+                    Journal j = s.getJournal();
+                    System.out.println(j == null ? "no journal"
+                            : j.getNextOffset() + " messages, " + j.getCommittedOffset() + " on disk");
+                    continue;
+                } else if (in.equals("bus")) {
+                    Bus b = s.getBus();
+                    System.out.println(b == null ? "no bus"
+                            : b.getSent() + " sent, " + b.getReceived() + " received, " + b.getDropped() + " dropped");
+                    continue;
                 } else if (in.equals("restart")) {
                     s.stop(0);
                     s.start();
@@ -100,23 +250,17 @@ public class ChatServer extends WebSocketServer {
     }
 
     /**
-     * Sends <var>text</var> to all currently connected Session clients.
+     * Sends <var>text</var> to all currently connected Session clients. The
+     * text is encoded and framed only once for all of them.
      * 
      * @param text
      *            The String to send across the network.
-     * @throws InterruptedException
-     *             When socket related I/O errors occur.
      */
     public void sendToAll(String text) {
-        Collection<Session> con = getSessions();
-        if (con != null)
-            synchronized (con) {
-                for (Session c : con) {
-                    c.send(text);
-                }
-            }
+        if (getSessions().isEmpty())
+            Log.d("No client!");
         else
-            Log.i("No client!");
+            broadcast(text);
     }
 
     @Override
@@ -131,8 +275,7 @@ public class ChatServer extends WebSocketServer {
         String message;
         try {
             message = CharsetStringConverter.stringUtf8(blob);
-            this.sendToAll(message);
-            System.out.println(conn + ": " + message);
+            onMessage(conn, message);
         } catch (WsIOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -153,19 +296,13 @@ public class ChatServer extends WebSocketServer {
 
     @Override
     public void onPing(Session conn, Message f) {
-        // TODO Auto-generated method stub
-        
+        Message pong = new MessageImpl(f);
+        pong.setOptcode(Message.Opcode.PONG);
+        conn.sendMessage(pong);
     }
 
     @Override
     public void onPong(Session conn, Message f) {
-        // TODO Auto-generated method stub
-        
-    }
-
-    @Override
-    public void onWriteDemand(Session conn) {
-        // TODO Auto-generated method stub
-        
+        // the server tracks the liveness of the connection by itself
     }
 }
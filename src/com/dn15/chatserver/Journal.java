@@ -0,0 +1,527 @@
+package com.dn15.chatserver;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import com.dn15.websocket.util.Log;
+import com.dn15.websocket.util.Metrics;
+
+/**
+ * Durable, append only log of the messages published to the rooms.<br>
+ * {@link #append(String, String)} only queues the message and returns; a
+ * message which finds {@link #MAX_QUEUED} messages queued is dropped. A
+ * single writer thread takes the queued messages in batches, numbers them
+ * with consecutive offsets and copies them into the current segment file,
+ * which is mapped into memory. Every {@link #FORCE_INTERVAL} milliseconds it
+ * forces the segment to disk once for all messages written since ( group
+ * commit ). A segment which is full is forced and a new one is started, named
+ * after the offset of its first message.<br>
+ * For every room the offsets and locations of its messages are indexed in
+ * memory, so {@link #read(String, long, int)} finds them without scanning
+ * the segments. The index is rebuilt from the segments when a journal is
+ * opened; a record torn by a crash ends the log.
+ *
+ * <pre>
+ * record: length(4) crc32(4) offset(8) time(8) roomlength(2) room text
+ * </pre>
+ *
+ * The crc32 covers the whole record but itself.
+ */
+public class Journal {
+
+    /** Default size of a segment file in bytes */
+    public static int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Default time in milliseconds between two forces of the written messages */
+    public static int FORCE_INTERVAL = 100;
+
+    /** Max number of messages written per batch */
+    public static int MAX_BATCH = 1024;
+
+    /** Max number of messages queued for the writer, further messages are dropped */
+    public static int MAX_QUEUED = 64 * 1024;
+
+    private static final int HEADER = 26;
+
+    private static final String SUFFIX = ".log";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** A message read from the journal */
+    public static class Entry {
+        private final long offset;
+        private final long time;
+        private final String room;
+        private final String text;
+
+        Entry(long offset, long time, String room, String text) {
+            this.offset = offset;
+            this.time = time;
+            this.room = room;
+            this.text = text;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /** the time the message has been appended, in milliseconds since the epoch */
+        public long getTime() {
+            return time;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public String toString() {
+            return offset + " " + room + ": " + text;
+        }
+    }
+
+    private static class Pending {
+        final String room;
+        final String text;
+        final long time;
+
+        Pending(String room, String text, long time) {
+            this.room = room;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    private static class Segment {
+        final long baseOffset;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+
+        Segment(long baseOffset, File file, FileChannel channel, MappedByteBuffer map) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    /** the offsets of the messages of one room and where they are stored */
+    private static class RoomIndex {
+        private long[] offsets = new long[16];
+        /** segment number in the high, position in the low 32 bits */
+        private long[] locations = new long[16];
+        private int size = 0;
+
+        synchronized void add(long offset, long location) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+            }
+            offsets[size] = offset;
+            locations[size] = location;
+            size++;
+        }
+
+        /** Returns the locations of at most max messages from offset on */
+        synchronized long[] from(long offset, int max) {
+            int i = Arrays.binarySearch(offsets, 0, size, offset);
+            if (i < 0)
+                i = -i - 1;
+            int n = Math.min(max, size - i);
+            if (n <= 0)
+                return new long[0];
+            return Arrays.copyOfRange(locations, i, i + n);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final int forceInterval;
+
+    /** all segments, oldest first. Only appended to by the writer */
+    private final List<Segment> segments = Collections.synchronizedList(new ArrayList<Segment>());
+
+    private final ConcurrentHashMap<String, RoomIndex> index = new ConcurrentHashMap<String, RoomIndex>();
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(MAX_QUEUED);
+
+    private final LongAdder dropped = new LongAdder();
+
+    /** the offset the next message gets, written by the writer only */
+    private volatile long nextOffset = 0;
+
+    /** every message below this offset has been forced to disk */
+    private volatile long committedOffset = 0;
+
+    private volatile boolean closed = false;
+
+    private final Thread writer;
+
+    /** the current segment and the write position in it, owned by the writer */
+    private Segment current;
+    private int position;
+
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    public Journal(File dir) throws IOException {
+        this(dir, SEGMENT_SIZE, FORCE_INTERVAL);
+    }
+
+    /**
+     * Opens the journal in <var>dir</var>, recovering the messages of its
+     * segments, and starts the writer thread.
+     *
+     * @param forceInterval
+     *            milliseconds between two forces, 0 forces after every batch
+     */
+    public Journal(File dir, int segmentSize, int forceInterval) throws IOException {
+        if (segmentSize < HEADER + 256 || forceInterval < 0)
+            throw new IllegalArgumentException("invalid segment size or force interval");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.forceInterval = forceInterval;
+        recover();
+        committedOffset = nextOffset;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "ChatJournal");
+        writer.setDaemon(true);
+        writer.start();
+        if (Metrics.ENABLED) {
+            Metrics.getDefault().register("journal.offset", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return nextOffset;
+                }
+            });
+            Metrics.getDefault().register("journal.committed", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return committedOffset;
+                }
+            });
+            Metrics.getDefault().register("journal.dropped", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return dropped.sum();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues <var>text</var> published to <var>room</var> to be written. Never
+     * blocks: The message is durable once {@link #getCommittedOffset()} has
+     * passed its offset. It is dropped if the queue is full.
+     */
+    public void append(String room, String text) {
+        if (closed)
+            throw new IllegalStateException("journal closed");
+        if (!queue.offer(new Pending(room, text, System.currentTimeMillis())))
+            dropped.increment();
+        LockSupport.unpark(writer);
+    }
+
+    /** Returns the offset of the next message, i.e. the number of messages written */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /** Returns the offset below which all messages are on disk */
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    /** Number of messages which have not been written */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Returns the number of messages of <var>room</var> in the journal */
+    public int size(String room) {
+        RoomIndex ri = index.get(room);
+        return ri == null ? 0 : ri.size();
+    }
+
+    /**
+     * Returns at most <var>max</var> messages of <var>room</var> with an
+     * offset of at least <var>fromOffset</var>, oldest first. Messages which
+     * are still queued are not included.
+     */
+    public List<Entry> read(String room, long fromOffset, int max) {
+        RoomIndex ri = index.get(room);
+        if (ri == null)
+            return Collections.emptyList();
+        long[] locations = ri.from(fromOffset, max);
+        List<Entry> entries = new ArrayList<Entry>(locations.length);
+        for (long l : locations) {
+            Segment s = segments.get((int) (l >>> 32));
+            ByteBuffer b = s.map.duplicate();
+            b.position((int) l);
+            entries.add(decode(b));
+        }
+        return entries;
+    }
+
+    /**
+     * Waits until every message appended so far is on disk, at most
+     * <var>millis</var> milliseconds.
+     *
+     * @return whether they are
+     */
+    public boolean sync(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!queue.isEmpty() || committedOffset < nextOffset) {
+            if (System.currentTimeMillis() >= deadline || !writer.isAlive())
+                return false;
+            LockSupport.unpark(writer);
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /** Writes and forces the queued messages and stops the writer */
+    public void close() throws InterruptedException {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+        if (Metrics.ENABLED) {
+            Metrics.getDefault().unregister("journal.offset");
+            Metrics.getDefault().unregister("journal.committed");
+            Metrics.getDefault().unregister("journal.dropped");
+        }
+        synchronized (segments) {
+            for (Segment s : segments) {
+                try {
+                    s.channel.close();
+                } catch (IOException e) {
+                    Log.e(e);
+                }
+            }
+        }
+    }
+
+    private void write() {
+        long lastForce = System.nanoTime();
+        boolean dirty = false;
+        while (true) {
+            boolean stop = closed;
+            int n = 0;
+            long now = System.nanoTime();
+            try {
+                Pending p;
+                while (n < MAX_BATCH && (p = queue.poll()) != null) {
+                    n++;
+                    try {
+                        writeRecord(p);
+                        dirty = true;
+                    } catch (IOException e) {
+                        dropped.increment();
+                        Log.e("Journal write failed, message dropped", e);
+                    } catch (RuntimeException e) {
+                        dropped.increment();
+                        Log.e("Journal write failed, message dropped", e);
+                    }
+                }
+                now = System.nanoTime();
+                if (dirty && (stop || now - lastForce >= forceInterval * 1000000L)) {
+                    // retried with the next interval if it fails
+                    lastForce = now;
+                    current.map.force();
+                    committedOffset = nextOffset;
+                    dirty = false;
+                }
+            } catch (RuntimeException e) {
+                Log.e("Journal writer failed", e);
+                if (stop)
+                    return;
+            } catch (Error e) {
+                Log.e("Journal writer failed", e);
+                if (stop)
+                    return;
+            }
+            if (stop && queue.isEmpty() && !dirty)
+                return;
+            if (n == 0)
+                LockSupport.parkNanos(this, dirty ? lastForce + forceInterval * 1000000L - now : 1000000000L);
+        }
+    }
+
+    private void writeRecord(Pending p) throws IOException {
+        byte[] room = p.room.getBytes(UTF8);
+        byte[] text = p.text.getBytes(UTF8);
+        int length = HEADER + room.length + text.length;
+        if (room.length > Short.MAX_VALUE || length > segmentSize)
+            throw new IOException("message of " + length + " bytes does not fit into a segment");
+        if (scratch.capacity() < length)
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        long offset = nextOffset;
+        ByteBuffer r = scratch;
+        r.clear();
+        r.putInt(length);
+        r.putInt(0);
+        r.putLong(offset);
+        r.putLong(p.time);
+        r.putShort((short) room.length);
+        r.put(room);
+        r.put(text);
+        crc.reset();
+        crc.update(r.array(), 0, 4);
+        crc.update(r.array(), 8, length - 8);
+        r.putInt(4, (int) crc.getValue());
+        r.flip();
+
+        if (current == null || position + length > segmentSize)
+            roll(offset);
+        ByteBuffer m = current.map.duplicate();
+        m.position(position);
+        m.put(r);
+        long location = ((long) (segments.size() - 1) << 32) | position;
+        position += length;
+        nextOffset = offset + 1;
+        RoomIndex ri = index.get(p.room);
+        if (ri == null) {
+            ri = new RoomIndex();
+            RoomIndex old = index.putIfAbsent(p.room, ri);
+            if (old != null)
+                ri = old;
+        }
+        ri.add(offset, location);
+    }
+
+    /** Forces the current segment and starts a new one at <var>baseOffset</var> */
+    private void roll(long baseOffset) throws IOException {
+        if (current != null) {
+            current.map.force();
+            committedOffset = baseOffset;
+        }
+        File f = new File(dir, String.format("%020d", baseOffset) + SUFFIX);
+        current = open(baseOffset, f);
+        segments.add(current);
+        position = 0;
+    }
+
+    private Segment open(long baseOffset, File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        FileChannel ch = raf.getChannel();
+        int size = (int) Math.max(segmentSize, ch.size());
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(baseOffset, f, ch, map);
+    }
+
+    /** Rebuilds the index from the segments and positions the writer behind the last message */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0)
+            return;
+        Arrays.sort(files);
+        for (File f : files) {
+            long base = Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+            Segment s = open(base, f);
+            int seg = segments.size();
+            segments.add(s);
+            ByteBuffer b = s.map.duplicate();
+            int pos = 0;
+            long expected = base;
+            while (true) {
+                int length = valid(b, pos, expected);
+                if (length == 0)
+                    break;
+                b.position(pos + 16);
+                RoomIndex ri = index.get(roomAt(b, pos));
+                if (ri == null) {
+                    ri = new RoomIndex();
+                    index.put(roomAt(b, pos), ri);
+                }
+                ri.add(expected, ((long) seg << 32) | pos);
+                pos += length;
+                expected++;
+            }
+            current = s;
+            position = pos;
+            nextOffset = expected;
+        }
+        Log.i("Journal recovered {} messages from {} segments", nextOffset, segments.size());
+    }
+
+    /** Returns the length of the intact record at pos with the given offset, or 0 */
+    private int valid(ByteBuffer b, int pos, long offset) {
+        if (pos + HEADER > b.limit())
+            return 0;
+        int length = b.getInt(pos);
+        if (length < HEADER || pos + length > b.limit() || b.getLong(pos + 8) != offset)
+            return 0;
+        byte[] bytes = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(pos);
+        d.get(bytes);
+        crc.reset();
+        crc.update(bytes, 0, 4);
+        crc.update(bytes, 8, length - 8);
+        return (int) crc.getValue() == b.getInt(pos + 4) ? length : 0;
+    }
+
+    private static String roomAt(ByteBuffer b, int pos) {
+        int roomlength = b.getShort(pos + 24);
+        byte[] room = new byte[roomlength];
+        ByteBuffer d = b.duplicate();
+        d.position(pos + HEADER);
+        d.get(room);
+        return new String(room, UTF8);
+    }
+
+    private static Entry decode(ByteBuffer b) {
+        int pos = b.position();
+        int length = b.getInt(pos);
+        long offset = b.getLong(pos + 8);
+        long time = b.getLong(pos + 16);
+        int roomlength = b.getShort(pos + 24);
+        byte[] room = new byte[roomlength];
+        byte[] text = new byte[length - HEADER - roomlength];
+        b.position(pos + HEADER);
+        b.get(room);
+        b.get(text);
+        return new Entry(offset, time, new String(room, UTF8), new String(text, UTF8));
+    }
+}
@@ -0,0 +1,140 @@
+package com.dn15.chatserver;
+
+import java.nio.ByteBuffer;
+
+import com.dn15.websocket.Draft_10;
+import com.dn15.websocket.Session;
+import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.WebSocketImpl;
+
+/**
+ * A named group of sessions messages are published to.<br>
+ * The members are kept in an array which is replaced on every join and
+ * leave, so publishing iterates a stable snapshot without any lock. Rooms
+ * are changed by {@link Rooms} only.<br>
+ * The last messages are kept in a {@link RoomHistory} and sent to every
+ * session joining the room. Storing a message and joining are atomic with
+ * respect to each other: A joining session gets a message either from the
+ * history or from the publish, never both or neither.
+ */
+public class Room {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final String name;
+
+    private volatile Session[] members = EMPTY;
+
+    private final RoomHistory history = new RoomHistory();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current members. The array is never modified, joins and
+     * leaves happening meanwhile are not reflected in it.
+     */
+    public Session[] getMembers() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    public boolean contains(Session s) {
+        return indexOf(members, s) != -1;
+    }
+
+    /**
+     * Stores <var>frame</var> in the history and returns the members it has to
+     * be sent to.
+     *
+     * @param frame
+     *            a complete unmasked RFC 6455 frame
+     */
+    public synchronized Session[] record(ByteBuffer frame) {
+        history.append(frame);
+        return members;
+    }
+
+    /** Number of messages in the history */
+    public synchronized int getHistorySize() {
+        return history.size();
+    }
+
+    /**
+     * Must be called with the room locked by {@link Rooms}. The history is
+     * queued to <var>s</var> before any later message.
+     */
+    synchronized boolean add(Session s) {
+        Session[] m = members;
+        if (indexOf(m, s) != -1)
+            return false;
+        Session[] n = new Session[m.length + 1];
+        System.arraycopy(m, 0, n, 0, m.length);
+        n[m.length] = s;
+        members = n;
+        replay(s);
+        return true;
+    }
+
+    /**
+     * Sends the history to <var>s</var> as it is. Only sessions speaking RFC
+     * 6455 understand the frames, sessions of older drafts get no history.
+     */
+    private void replay(Session s) {
+        if (!(s instanceof WebSocketImpl))
+            return;
+        WebSocketImpl ws = (WebSocketImpl) s;
+        if (ws.getRole() != Role.SERVER || !(ws.getDraft() instanceof Draft_10))
+            return;
+        ByteBuffer frames = history.copy();
+        if (frames != null)
+            ws.sendFrame(frames);
+    }
+
+    /** Must be called with the room locked by {@link Rooms} */
+    synchronized boolean remove(Session s) {
+        Session[] m = members;
+        int i = indexOf(m, s);
+        if (i == -1)
+            return false;
+        if (m.length == 1) {
+            members = EMPTY;
+            return true;
+        }
+        Session[] n = new Session[m.length - 1];
+        System.arraycopy(m, 0, n, 0, i);
+        System.arraycopy(m, i + 1, n, i, m.length - i - 1);
+        members = n;
+        return true;
+    }
+
+    /** Called once the room has been removed */
+    synchronized void release() {
+        history.release();
+    }
+
+    private static int indexOf(Session[] m, Session s) {
+        for (int i = 0; i < m.length; i++) {
+            if (m[i] == s)
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + members.length + ")";
+    }
+}
@@ -0,0 +1,144 @@
+package com.dn15.chatserver;
+
+import java.nio.ByteBuffer;
+
+import com.dn15.websocket.util.BufferPool;
+import com.dn15.websocket.util.DirectArena;
+
+/**
+ * The last messages of a room as complete frames, kept outside of the heap.
+ * <br>
+ * The frames are stored back to back in a ring within a single chunk of a
+ * {@link DirectArena}. A frame which does not fit at the end of the chunk is
+ * stored at its start, the bytes skipped at the end are accounted to that
+ * frame. The oldest frames are dropped when the ring runs out of messages or
+ * bytes. The chunk is only taken once the first message arrives.<br>
+ * Not thread safe: Used under the lock of its {@link Room}.
+ */
+public class RoomHistory {
+
+    /** Max number of messages kept per room. 0 disables the history */
+    public static int MAX_MESSAGES = 50;
+
+    /** Max number of bytes kept per room, must be set before the first message is kept */
+    public static int MAX_BYTES = 64 * 1024;
+
+    /** Number of rooms whose history shares a direct buffer allocation */
+    public static int ROOMS_PER_SLAB = 64;
+
+    private static DirectArena arena;
+
+    private static synchronized DirectArena arena() {
+        if (arena == null)
+            arena = new DirectArena(MAX_BYTES, ROOMS_PER_SLAB);
+        return arena;
+    }
+
+    /** Returns the arena the histories of all rooms are stored in */
+    public static DirectArena getArena() {
+        return arena();
+    }
+
+    private ByteBuffer ring = null;
+
+    private int[] start;
+    private int[] length;
+    /** the bytes of the ring taken by a frame, including any skipped end */
+    private int[] span;
+
+    /** the slot of the oldest frame */
+    private int first = 0;
+    private int count = 0;
+    private int used = 0;
+    private int writePos = 0;
+
+    private boolean released = false;
+
+    RoomHistory() {
+    }
+
+    /**
+     * Stores a copy of the remaining bytes of <var>frame</var> as the newest
+     * message. Frames longer than the whole ring are not kept.
+     */
+    void append(ByteBuffer frame) {
+        int len = frame.remaining();
+        if (released || MAX_MESSAGES <= 0)
+            return;
+        if (ring == null) {
+            DirectArena a = arena();
+            if (len > a.getChunkSize())
+                return;
+            ring = a.allocate();
+            start = new int[MAX_MESSAGES];
+            length = new int[MAX_MESSAGES];
+            span = new int[MAX_MESSAGES];
+        }
+        int capacity = ring.capacity();
+        if (len > capacity)
+            return;
+        int skip = writePos + len > capacity ? capacity - writePos : 0;
+        while (count > 0 && (count == start.length || capacity - used < len + skip)) {
+            dropOldest();
+            if (count == 0) {
+                // an empty ring starts over at its beginning
+                writePos = 0;
+                skip = 0;
+            }
+        }
+        int pos = skip > 0 ? 0 : writePos;
+        ByteBuffer dst = ring.duplicate();
+        dst.position(pos);
+        dst.put(frame.duplicate());
+        int slot = (first + count) % start.length;
+        start[slot] = pos;
+        length[slot] = len;
+        span[slot] = len + skip;
+        count++;
+        used += len + skip;
+        writePos = pos + len == capacity ? 0 : pos + len;
+    }
+
+    private void dropOldest() {
+        used -= span[first];
+        first = (first + 1) % start.length;
+        count--;
+    }
+
+    /**
+     * Returns all stored frames, oldest first, copied into one buffer of the
+     * {@link BufferPool#getDefault() default pool}, or null if there are none.
+     */
+    ByteBuffer copy() {
+        if (count == 0 || released)
+            return null;
+        int total = 0;
+        for (int i = 0; i < count; i++)
+            total += length[(first + i) % start.length];
+        ByteBuffer out = BufferPool.getDefault().acquire(total);
+        ByteBuffer src = ring.duplicate();
+        for (int i = 0; i < count; i++) {
+            int slot = (first + i) % start.length;
+            src.limit(start[slot] + length[slot]);
+            src.position(start[slot]);
+            out.put(src);
+        }
+        out.flip();
+        return out;
+    }
+
+    /** Number of stored messages */
+    public int size() {
+        return count;
+    }
+
+    /** Hands the memory back to the arena. Further messages are not kept. */
+    void release() {
+        released = true;
+        count = 0;
+        if (ring != null) {
+            arena().free(ring);
+            ring = null;
+        }
+    }
+}
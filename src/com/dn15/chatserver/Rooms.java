@@ -0,0 +1,127 @@
+package com.dn15.chatserver;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.dn15.websocket.Session;
+
+/**
+ * The rooms of a server and the rooms every session is in.<br>
+ * A room is created by its first join and removed with its last leave.
+ * Joins and leaves change the room inside
+ * {@link ConcurrentHashMap#compute(Object, BiFunction)}, which locks only
+ * the bin of the map the room is in: Changes of different rooms hardly ever
+ * contend, however many rooms there are. Looking up a room and iterating its
+ * members takes no lock at all. The history of a room is dropped together
+ * with the room.
+ */
+public class Rooms {
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+
+    /** the names of the rooms of every session which is in at least one */
+    private final ConcurrentHashMap<Session, Set<String>> joined = new ConcurrentHashMap<Session, Set<String>>();
+
+    private static final Function<Session, Set<String>> NEW_SET = new Function<Session, Set<String>>() {
+        @Override
+        public Set<String> apply(Session s) {
+            return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+        }
+    };
+
+    /**
+     * Adds <var>s</var> to the room <var>name</var>, creating the room if
+     * needed.
+     *
+     * @return false if <var>s</var> has been a member already
+     */
+    public boolean join(final Session s, String name) {
+        if (s == null || name == null)
+            throw new IllegalArgumentException("session and room must not be null");
+        final boolean[] added = new boolean[1];
+        rooms.compute(name, new BiFunction<String, Room, Room>() {
+            @Override
+            public Room apply(String name, Room room) {
+                if (room == null)
+                    room = new Room(name);
+                added[0] = room.add(s);
+                return room;
+            }
+        });
+        if (added[0]) {
+            joined.computeIfAbsent(s, NEW_SET).add(name);
+            // a session closed meanwhile would never leave the room again
+            if (s.isClosed())
+                leaveAll(s);
+        }
+        return added[0];
+    }
+
+    /**
+     * Removes <var>s</var> from the room <var>name</var>. The room is removed
+     * once it is empty.
+     *
+     * @return false if <var>s</var> has not been a member
+     */
+    public boolean leave(final Session s, String name) {
+        if (!removeMember(s, name))
+            return false;
+        Set<String> names = joined.get(s);
+        if (names != null) {
+            names.remove(name);
+            if (names.isEmpty())
+                joined.remove(s, names);
+        }
+        return true;
+    }
+
+    /**
+     * Removes <var>s</var> from all of its rooms, e.g. when it has been closed.
+     *
+     * @return the names of the rooms it has left
+     */
+    public Set<String> leaveAll(Session s) {
+        Set<String> names = joined.remove(s);
+        if (names == null)
+            return Collections.emptySet();
+        for (String name : names)
+            removeMember(s, name);
+        return names;
+    }
+
+    private boolean removeMember(final Session s, String name) {
+        final boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, new BiFunction<String, Room, Room>() {
+            @Override
+            public Room apply(String name, Room room) {
+                removed[0] = room.remove(s);
+                if (!room.isEmpty())
+                    return room;
+                room.release();
+                return null;
+            }
+        });
+        return removed[0];
+    }
+
+    /** Returns the room <var>name</var> or null if nobody is in it */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /** Returns the names of the rooms <var>s</var> is in */
+    public Set<String> getRooms(Session s) {
+        Set<String> names = joined.get(s);
+        if (names == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(names);
+    }
+
+    /** Returns the number of rooms */
+    public int size() {
+        return rooms.size();
+    }
+}
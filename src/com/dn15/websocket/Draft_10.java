@@ -1,9 +1,8 @@
 package com.dn15.websocket;
 
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -14,6 +13,7 @@ import com.dn15.websocket.exception.InvalidFrameException;
 import com.dn15.websocket.exception.InvalidHandshakeException;
 import com.dn15.websocket.exception.LimitExedeedException;
 import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.extension.PerMessageDeflate;
 import com.dn15.websocket.message.ClientHandshake;
 import com.dn15.websocket.message.CloseMessageBuilder;
 import com.dn15.websocket.message.Handshake;
@@ -21,7 +21,9 @@ import com.dn15.websocket.message.Message;
 import com.dn15.websocket.message.MessageImpl;
 import com.dn15.websocket.message.ServerHandshake;
 import com.dn15.websocket.message.Message.Opcode;
+import com.dn15.websocket.util.AcceptKey;
 import com.dn15.websocket.util.Base64;
+import com.dn15.websocket.util.BufferPool;
 import com.dn15.websocket.util.CharsetStringConverter;
 import com.dn15.websocket.util.Log;
 
@@ -46,7 +48,7 @@ public class Draft_10 extends WebSocketProtocol {
             int v;
             try {
                 v = new Integer(vers.trim());
-                Log.i("Version: " + v);
+                Log.d("Version: {}", v);
                 return v;
             } catch (NumberFormatException e) {
                 return -1;
@@ -56,7 +58,24 @@ public class Draft_10 extends WebSocketProtocol {
     }
 
     private ByteBuffer incompleteframe;
-    private Message fragmentedframe = null;
+
+    /**
+     * a completed {@link #incompleteframe} whose content is still referenced
+     * by the frames returned from the last call of translateFrame
+     */
+    private ByteBuffer completedframe;
+
+    /** the inflated payloads of the frames returned from the last call of translateFrame */
+    private final List<ByteBuffer> inflatedframes = new ArrayList<ByteBuffer>(2);
+
+    /** the negotiated permessage-deflate extension or null */
+    protected PerMessageDeflate deflate;
+
+    /** whether the data frames currently received belong to a compressed message */
+    private boolean inflating = false;
+
+    /** number of bytes the current compressed message has been inflated to */
+    private long inflatedsize = 0;
 
     private final Random reuseableRandom = new Random();
 
@@ -68,7 +87,7 @@ public class Draft_10 extends WebSocketProtocol {
 
         String seckey_answere = response.getFieldValue("Sec-WebSocket-Accept");
         String seckey_challenge = request.getFieldValue("Sec-WebSocket-Key");
-        seckey_challenge = generateFinalKey(seckey_challenge);
+        seckey_challenge = AcceptKey.compute(seckey_challenge);
 
         if (seckey_challenge.equals(seckey_answere))
             return HandshakeState.MATCHED;
@@ -88,12 +107,24 @@ public class Draft_10 extends WebSocketProtocol {
     public ByteBuffer createBinaryFrame(Message framedata) {
         ByteBuffer mes = framedata.getPayloadData();
         boolean mask = role == Role.CLIENT; // framedata.getTransfereMasked();
+        boolean compressed = false;
+        ByteBuffer deflated = null;
+        PerMessageDeflate d = deflate;
+        if (d != null && framedata.isFin() && isDataFrame(framedata.getOpcode()) && d.shouldCompress(mes.remaining())) {
+            deflated = d.compress(mes.duplicate());
+            if (deflated != null) {
+                mes = deflated;
+                compressed = true;
+            }
+        }
         int sizebytes = mes.remaining() <= 125 ? 1 : mes.remaining() <= 65535 ? 2 : 8;
-        ByteBuffer buf = ByteBuffer.allocate(1 + (sizebytes > 1 ? sizebytes + 1 : sizebytes) + (mask ? 4 : 0)
-                + mes.remaining());
+        ByteBuffer buf = BufferPool.getDefault().acquire(
+                1 + (sizebytes > 1 ? sizebytes + 1 : sizebytes) + (mask ? 4 : 0) + mes.remaining());
         byte optcode = fromOpcode(framedata.getOpcode());
         byte one = (byte) (framedata.isFin() ? -128 : 0);
         one |= optcode;
+        if (compressed)
+            one |= 0x40; // RSV1
         buf.put(one);
         byte[] payloadlengthbytes = toByteArray(mes.remaining(), sizebytes);
         assert (payloadlengthbytes.length == sizebytes);
@@ -118,6 +149,7 @@ public class Draft_10 extends WebSocketProtocol {
             }
         } else
             buf.put(mes);
+        BufferPool.getDefault().release(deflated);
         // translateFrame ( buf.array () , buf.array ().length );
         assert (buf.remaining() == 0) : buf.remaining();
         buf.flip();
@@ -169,17 +201,6 @@ public class Draft_10 extends WebSocketProtocol {
         throw new RuntimeException("Don't know how to handle " + opcode.toString());
     }
 
-    private String generateFinalKey(String in) {
-        String seckey = in.trim();
-        String acc = seckey + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-        MessageDigest sh1;
-        try {
-            sh1 = MessageDigest.getInstance("SHA1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-        return Base64.encodeBytes(sh1.digest(acc.getBytes()));
-    }
 
     @Override
     public ClientHandshake postProcessHandshakeRequest(ClientHandshake request) {
@@ -209,7 +230,7 @@ public class Draft_10 extends WebSocketProtocol {
         String seckey = request.getFieldValue("Sec-WebSocket-Key");
         if (seckey == null)
             throw new InvalidHandshakeException("missing Sec-WebSocket-Key");
-        response.put("Sec-WebSocket-Accept", generateFinalKey(seckey));
+        response.put("Sec-WebSocket-Accept", AcceptKey.compute(seckey));
         return response;
     }
 
@@ -248,6 +269,12 @@ public class Draft_10 extends WebSocketProtocol {
         List<Message> frames = new LinkedList<Message>();
         Message cur;
 
+        if (completedframe != null) {
+            BufferPool.getDefault().release(completedframe);
+            completedframe = null;
+        }
+        releaseInflated();
+
         if (incompleteframe != null) {
             // complete an incomplete frame
             while (true) {
@@ -270,24 +297,24 @@ public class Draft_10 extends WebSocketProtocol {
 
                     if (expected_next_byte_count > available_next_byte_count) {
                         // did not receive enough bytes to complete the frame
-                        incompleteframe.put(buffer.array(), buffer.position(), available_next_byte_count);
-                        buffer.position(buffer.position() + available_next_byte_count);
+                        transfer(buffer, incompleteframe, available_next_byte_count);
                         return Collections.emptyList();
                     }
-                    incompleteframe.put(buffer.array(), buffer.position(), expected_next_byte_count);
-                    buffer.position(buffer.position() + expected_next_byte_count);
+                    transfer(buffer, incompleteframe, expected_next_byte_count);
 
                     cur = translateSingleFrame((ByteBuffer) incompleteframe.duplicate().position(0));
+                    setPayloadOwner(cur, incompleteframe);
                     frames.add(cur);
+                    completedframe = incompleteframe;
                     incompleteframe = null;
                     break; // go on with the normal frame receival
                 } catch (IncompleteException e) {
                     // extending as much as suggested
-                    int oldsize = incompleteframe.limit();
-                    ByteBuffer extendedframe = ByteBuffer.allocate(checkAlloc(e.getPreferedSize()));
+                    ByteBuffer extendedframe = BufferPool.getDefault().acquire(checkAlloc(e.getPreferedSize()));
                     assert (extendedframe.limit() > incompleteframe.limit());
                     incompleteframe.rewind();
                     extendedframe.put(incompleteframe);
+                    BufferPool.getDefault().release(incompleteframe);
                     incompleteframe = extendedframe;
 
                     return translateFrame(buffer);
@@ -299,12 +326,13 @@ public class Draft_10 extends WebSocketProtocol {
             buffer.mark();
             try {
                 cur = translateSingleFrame(buffer);
+                setPayloadOwner(cur, buffer);
                 frames.add(cur);
             } catch (IncompleteException e) {
                 // remember the incomplete data
                 buffer.reset();
                 int pref = e.getPreferedSize();
-                incompleteframe = ByteBuffer.allocate(checkAlloc(pref));
+                incompleteframe = BufferPool.getDefault().acquire(checkAlloc(pref));
                 incompleteframe.put(buffer);
                 break;
             }
@@ -312,20 +340,34 @@ public class Draft_10 extends WebSocketProtocol {
         return frames;
     }
 
+    /** Records the buffer the payload of <var>frame</var> is a view of, unless it is inflated */
+    private static void setPayloadOwner(Message frame, ByteBuffer owner) {
+        if (frame instanceof MessageImpl && ((MessageImpl) frame).getPayloadOwner() == null)
+            ((MessageImpl) frame).setPayloadOwner(owner);
+    }
+
+    /**
+     * Decodes the frame at the position of <var>buffer</var>.<br>
+     * The payload of the returned frame is unmasked in place and is a slice of
+     * <var>buffer</var>. It is therefore only valid as long as the content of
+     * <var>buffer</var> is not reused.
+     */
     public Message translateSingleFrame(ByteBuffer buffer) throws IncompleteException, WsIOException {
         int maxpacketsize = buffer.remaining();
         int realpacketsize = 2;
         if (maxpacketsize < realpacketsize)
             throw new IncompleteException(realpacketsize);
-        byte b1 = buffer.get( /* 0 */);
-        boolean FIN = b1 >> 8 != 0;
-        byte rsv = (byte) ((b1 & ~(byte) 128) >> 4);
-        if (rsv != 0)
+        int b1 = buffer.get( /* 0 */) & 0xFF;
+        boolean FIN = (b1 & 0x80) != 0;
+        int rsv = (b1 & 0x70) >> 4;
+        int b2 = buffer.get( /* 1 */) & 0xFF;
+        boolean MASK = (b2 & 0x80) != 0;
+        int payloadlength = b2 & 0x7F;
+        Opcode optcode = toOpcode((byte) (b1 & 0x0F));
+        PerMessageDeflate d = deflate;
+        // RSV1 marks the first frame of a compressed message
+        if (rsv != 0 && (rsv != 4 || d == null || optcode != Opcode.TEXT && optcode != Opcode.BINARY))
             throw new InvalidFrameException("bad rsv " + rsv);
-        byte b2 = buffer.get( /* 1 */);
-        boolean MASK = (b2 & -128) != 0;
-        int payloadlength = (byte) (b2 & ~(byte) 128);
-        Opcode optcode = toOpcode((byte) (b1 & 15));
 
         if (!FIN) {
             if (optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING) {
@@ -333,8 +375,7 @@ public class Draft_10 extends WebSocketProtocol {
             }
         }
 
-        if (payloadlength >= 0 && payloadlength <= 125) {
-        } else {
+        if (payloadlength > 125) {
             if (optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING) {
                 throw new InvalidFrameException("more than 125 octets");
             }
@@ -342,48 +383,60 @@ public class Draft_10 extends WebSocketProtocol {
                 realpacketsize += 2; // additional length bytes
                 if (maxpacketsize < realpacketsize)
                     throw new IncompleteException(realpacketsize);
-                byte[] sizebytes = new byte[3];
-                sizebytes[1] = buffer.get( /* 1 + 1 */);
-                sizebytes[2] = buffer.get( /* 1 + 2 */);
-                payloadlength = new BigInteger(sizebytes).intValue();
+                payloadlength = (buffer.get() & 0xFF) << 8 | (buffer.get() & 0xFF);
             } else {
                 realpacketsize += 8; // additional length bytes
                 if (maxpacketsize < realpacketsize)
                     throw new IncompleteException(realpacketsize);
-                byte[] bytes = new byte[8];
+                long length = 0;
                 for (int i = 0; i < 8; i++) {
-                    bytes[i] = buffer.get( /* 1 + i */);
-                }
-                long length = new BigInteger(bytes).longValue();
-                if (length > Integer.MAX_VALUE) {
-                    throw new LimitExedeedException("Payloadsize is to big...");
-                } else {
-                    payloadlength = (int) length;
+                    length = length << 8 | (buffer.get() & 0xFF);
                 }
+                if (length < 0)
+                    throw new InvalidFrameException("most significant bit of the payload length must be 0");
+                if (length > maxFrameSize)
+                    throw new LimitExedeedException("frame exceeds " + maxFrameSize + " bytes");
+                payloadlength = (int) length;
             }
         }
+        // reject before anything is allocated for the payload
+        if (payloadlength > maxFrameSize)
+            throw new LimitExedeedException("frame exceeds " + maxFrameSize + " bytes");
 
-        // int maskskeystart = foff + realpacketsize;
         realpacketsize += (MASK ? 4 : 0);
-        // int payloadstart = foff + realpacketsize;
+        // checked before adding, the frame size may not fit into an int
+        if (payloadlength > Integer.MAX_VALUE - realpacketsize)
+            throw new LimitExedeedException("frame exceeds " + maxFrameSize + " bytes");
+        if (payloadlength > maxpacketsize - realpacketsize)
+            throw new IncompleteException(realpacketsize + payloadlength);
         realpacketsize += payloadlength;
 
-        if (maxpacketsize < realpacketsize)
-            throw new IncompleteException(realpacketsize);
-
-        ByteBuffer payload = ByteBuffer.allocate(checkAlloc(payloadlength));
-        if (MASK) {
-            byte[] maskskey = new byte[4];
-            buffer.get(maskskey);
-            for (int i = 0; i < payloadlength; i++) {
-                payload.put((byte) ((byte) buffer.get( /* payloadstart + i */) ^ (byte) maskskey[i % 4]));
+        int maskkey = MASK ? buffer.getInt() : 0;
+        ByteBuffer payload = buffer.slice().order(buffer.order());
+        payload.limit(payloadlength);
+        buffer.position(buffer.position() + payloadlength);
+        if (MASK)
+            unmask(payload, maskkey);
+        boolean inflated = false;
+        if (isDataFrame(optcode)) {
+            if (rsv == 4) {
+                inflating = true;
+                inflatedsize = 0;
+            } else if (optcode != Opcode.CONTINUOUS)
+                inflating = false;
+            if (inflating) {
+                if (d == null)
+                    throw new InvalidFrameException("compressed frame without permessage-deflate");
+                payload = d.decompress(payload, FIN, maxMessageSize - inflatedsize);
+                inflatedframes.add(payload);
+                inflated = true;
+                inflatedsize += payload.remaining();
+                if (FIN)
+                    inflating = false;
             }
-        } else {
-            payload.put(buffer.array(), buffer.position(), payload.limit());
-            buffer.position(buffer.position() + payload.limit());
         }
 
-        Message frame;
+        MessageImpl frame;
         if (optcode == Opcode.CLOSING) {
             frame = new CloseMessageBuilder();
         } else {
@@ -391,14 +444,90 @@ public class Draft_10 extends WebSocketProtocol {
             frame.setFin(FIN);
             frame.setOptcode(optcode);
         }
-        payload.flip();
         frame.setPayload(payload);
+        if (inflated)
+            frame.setPayloadOwner(payload);
         return frame;
     }
 
+    /**
+     * Applies the masking key to the whole remaining content of
+     * <var>payload</var>, 8 bytes at a time.
+     * 
+     * @param maskkey
+     *            the masking key as read by <code>payload.getInt()</code>
+     */
+    private static void unmask(ByteBuffer payload, int maskkey) {
+        long longmask = (long) maskkey << 32 | maskkey & 0xFFFFFFFFL;
+        int i = payload.position();
+        int end = payload.limit();
+        for (; i + 8 <= end; i += 8) {
+            payload.putLong(i, payload.getLong(i) ^ longmask);
+        }
+        boolean bigendian = payload.order() == ByteOrder.BIG_ENDIAN;
+        for (int j = 0; i < end; i++, j++) {
+            payload.put(i, (byte) (payload.get(i) ^ maskkey >>> (bigendian ? 24 - 8 * j : 8 * j)));
+        }
+    }
+
+    private static boolean isDataFrame(Opcode opcode) {
+        return opcode == Opcode.TEXT || opcode == Opcode.BINARY || opcode == Opcode.CONTINUOUS;
+    }
+
+    /**
+     * Moves <var>count</var> bytes from <var>src</var> to <var>dst</var>
+     * without requiring the buffers to be backed by an array.
+     */
+    private static void transfer(ByteBuffer src, ByteBuffer dst, int count) {
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        dst.put(src);
+        src.limit(limit);
+    }
+
     @Override
     public void reset() {
+        BufferPool.getDefault().release(incompleteframe);
         incompleteframe = null;
+        BufferPool.getDefault().release(completedframe);
+        completedframe = null;
+        releaseInflated();
+        inflating = false;
+    }
+
+    private void releaseInflated() {
+        for (int i = 0; i < inflatedframes.size(); i++)
+            BufferPool.getDefault().release(inflatedframes.get(i));
+        inflatedframes.clear();
+    }
+
+    @Override
+    public void release() {
+        PerMessageDeflate d = deflate;
+        deflate = null;
+        if (d != null)
+            d.end();
+    }
+
+    @Override
+    public boolean hasCompressionContext() {
+        PerMessageDeflate d = deflate;
+        return d != null && !d.isServerNoContextTakeover();
+    }
+
+    /**
+     * Compressed frames can be shared as well if the server does not take
+     * over its compression context: the same message then always compresses
+     * to the same bytes.
+     */
+    @Override
+    public Object getFrameEncoding() {
+        PerMessageDeflate d = deflate;
+        if (d == null)
+            return getClass();
+        if (d.isServerNoContextTakeover())
+            return getClass().getName() + "; " + PerMessageDeflate.EXTENSION_NAME;
+        return null;
     }
 
     @Override
@@ -1,7 +1,9 @@
 package com.dn15.websocket;
 
 import com.dn15.websocket.exception.InvalidHandshakeException;
+import com.dn15.websocket.extension.PerMessageDeflate;
 import com.dn15.websocket.message.ClientHandshake;
+import com.dn15.websocket.message.ServerHandshake;
 
 
 public class Draft_17 extends Draft_10 {
@@ -20,6 +22,17 @@ public class Draft_17 extends Draft_10 {
 		return request;
 	}
 
+	@Override
+	public ServerHandshake postProcessHandshakeResponse( ClientHandshake request, ServerHandshake response ) throws InvalidHandshakeException {
+		super.postProcessHandshakeResponse( request, response );
+		if( request.hasFieldValue( "Sec-WebSocket-Extensions" ) ) {
+			deflate = PerMessageDeflate.negotiate( request.getFieldValue( "Sec-WebSocket-Extensions" ) );
+			if( deflate != null )
+				response.put( "Sec-WebSocket-Extensions", deflate.getResponseHeader() );
+		}
+		return response;
+	}
+
 	@Override
 	public WebSocketProtocol copyInstance() {
 		return new Draft_17();
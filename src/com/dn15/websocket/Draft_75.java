@@ -200,7 +200,9 @@ public class Draft_75 extends WebSocketProtocol {
 
     public ByteBuffer increaseBuffer(ByteBuffer full) throws LimitExedeedException, WsIOException {
         full.flip();
-        ByteBuffer newbuffer = ByteBuffer.allocate(checkAlloc(full.capacity() * 2));
+        if (full.capacity() >= maxFrameSize)
+            throw new LimitExedeedException("frame exceeds " + maxFrameSize + " bytes");
+        ByteBuffer newbuffer = ByteBuffer.allocate(checkAlloc(Math.min(full.capacity() * 2, maxFrameSize)));
         newbuffer.put(full);
         return newbuffer;
     }
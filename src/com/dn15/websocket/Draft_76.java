@@ -1,6 +1,5 @@
 package com.dn15.websocket;
 
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -13,6 +12,7 @@ import com.dn15.websocket.Session.Role;
 import com.dn15.websocket.exception.IncompleteHandshakeException;
 import com.dn15.websocket.exception.InvalidFrameException;
 import com.dn15.websocket.exception.InvalidHandshakeException;
+import com.dn15.websocket.exception.LimitExedeedException;
 import com.dn15.websocket.exception.WsIOException;
 import com.dn15.websocket.message.ClientHandshake;
 import com.dn15.websocket.message.CloseMessageBuilder;
@@ -178,23 +178,26 @@ public class Draft_76 extends Draft_75 {
     }
 
     @Override
-    public Handshake translateHandshake(ByteBuffer buf) throws InvalidHandshakeException {
-
+    public Handshake translateHandshake(ByteBuffer buf) throws InvalidHandshakeException, LimitExedeedException {
         Handshake bui = translateHandshakeHttp(buf, role);
+        if (!readHandshakeContent(bui, buf))
+            throw new IncompleteHandshakeException(buf.capacity() + 16);
+        return bui;
+    }
+
+    @Override
+    public boolean readHandshakeContent(Handshake handshake, ByteBuffer buf) {
         // the first drafts are lacking a protocol number which makes them
         // difficult to distinguish. Sec-WebSocket-Key1 is typical for draft76
-        if ((bui.hasFieldValue("Sec-WebSocket-Key1") || role == Role.CLIENT)
-                && !bui.hasFieldValue("Sec-WebSocket-Version")) {
+        if ((handshake.hasFieldValue("Sec-WebSocket-Key1") || role == Role.CLIENT)
+                && !handshake.hasFieldValue("Sec-WebSocket-Version")) {
             byte[] key3 = new byte[role == Role.SERVER ? 8 : 16];
-            try {
-                buf.get(key3);
-            } catch (BufferUnderflowException e) {
-                throw new IncompleteHandshakeException(buf.capacity() + 16);
-            }
-            bui.setContent(key3);
-
+            if (buf.remaining() < key3.length)
+                return false;
+            buf.get(key3);
+            handshake.setContent(key3);
         }
-        return bui;
+        return true;
     }
 
     @Override
@@ -0,0 +1,226 @@
+package com.dn15.websocket;
+
+import java.nio.ByteBuffer;
+
+import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.exception.InvalidHandshakeException;
+import com.dn15.websocket.exception.LimitExedeedException;
+import com.dn15.websocket.message.Handshake;
+import com.dn15.websocket.message.HandshakeFlatClient;
+import com.dn15.websocket.message.HandshakeFlatServer;
+import com.dn15.websocket.util.CharsetStringConverter;
+
+/**
+ * Incremental parser for the http part of a handshake.<br>
+ * The bytes may be passed in as many pieces as they are received. Every call
+ * of {@link #parse(ByteBuffer)} continues where the previous one stopped, so
+ * every byte is looked at only once and only the current line is buffered.
+ * Well known header names are not allocated but shared.<br>
+ * A parser reads a single handshake and must not be shared between
+ * connections.
+ */
+public class HandshakeParser {
+
+    /** Max length of the request/status line or of a single header line */
+    public static int MAX_LINE_LENGTH = 8192;
+
+    /** Max number of header fields */
+    public static int MAX_HEADER_COUNT = 100;
+
+    /** Max number of bytes up to and including the empty line */
+    public static int MAX_HANDSHAKE_SIZE = 16384;
+
+    private static final String[] KNOWN_HEADERS = { "Host", "Upgrade", "Connection", "Origin", "Sec-WebSocket-Key",
+            "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol", "Sec-WebSocket-Accept",
+            "Sec-WebSocket-Key1", "Sec-WebSocket-Key2", "Sec-WebSocket-Origin", "Sec-WebSocket-Location",
+            "User-Agent", "Cookie", "Pragma", "Cache-Control", "Accept-Encoding", "Accept-Language",
+            "X-Forwarded-For" };
+
+    /** {@link #KNOWN_HEADERS} indexed by their length */
+    private static final String[][] KNOWN_BY_LENGTH;
+
+    static {
+        int max = 0;
+        for (String h : KNOWN_HEADERS)
+            max = Math.max(max, h.length());
+        KNOWN_BY_LENGTH = new String[max + 1][];
+        for (String h : KNOWN_HEADERS) {
+            String[] prev = KNOWN_BY_LENGTH[h.length()];
+            String[] cur = new String[prev == null ? 1 : prev.length + 1];
+            if (prev != null)
+                System.arraycopy(prev, 0, cur, 0, prev.length);
+            cur[cur.length - 1] = h;
+            KNOWN_BY_LENGTH[h.length()] = cur;
+        }
+    }
+
+    private final Role role;
+
+    private final int maxHandshakeSize;
+
+    /** the current line without the terminating CRLF */
+    private byte[] line = new byte[128];
+    private int linelength = 0;
+
+    /** whether the last byte has been a CR */
+    private boolean cr = false;
+
+    /** number of bytes consumed so far */
+    private int size = 0;
+
+    private int headercount = 0;
+
+    /** null until the first line has been read */
+    private Handshake handshake = null;
+
+    private boolean complete = false;
+
+    /**
+     * @param role
+     *            the role of the receiving side: a server parses requests, a
+     *            client parses responses
+     */
+    public HandshakeParser(Role role) {
+        this(role, MAX_HANDSHAKE_SIZE);
+    }
+
+    /**
+     * @param maxHandshakeSize
+     *            max number of bytes up to and including the empty line
+     */
+    public HandshakeParser(Role role, int maxHandshakeSize) {
+        this.role = role;
+        this.maxHandshakeSize = maxHandshakeSize;
+    }
+
+    /**
+     * Consumes the bytes of <var>buf</var> up to the end of the http header.
+     *
+     * @return the handshake once the empty line terminating the header has
+     *         been consumed or null if more bytes are needed. In the latter
+     *         case all of <var>buf</var> has been consumed.
+     */
+    public Handshake parse(ByteBuffer buf) throws InvalidHandshakeException, LimitExedeedException {
+        if (complete)
+            throw new IllegalStateException("the handshake has already been parsed");
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (++size > maxHandshakeSize)
+                throw new LimitExedeedException("handshake exceeds " + maxHandshakeSize + " bytes");
+            if (cr) {
+                cr = false;
+                if (b == '\n') {
+                    if (endLine()) {
+                        complete = true;
+                        return handshake;
+                    }
+                    continue;
+                }
+                append((byte) '\r');
+            }
+            if (b == '\r')
+                cr = true;
+            else
+                append(b);
+        }
+        return null;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private void append(byte b) throws LimitExedeedException {
+        if (linelength == line.length) {
+            if (linelength >= MAX_LINE_LENGTH)
+                throw new LimitExedeedException("handshake line exceeds " + MAX_LINE_LENGTH + " bytes");
+            byte[] grown = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(line, 0, grown, 0, linelength);
+            line = grown;
+        }
+        line[linelength++] = b;
+    }
+
+    /** @return whether the line was the empty line ending the header */
+    private boolean endLine() throws InvalidHandshakeException, LimitExedeedException {
+        int len = linelength;
+        linelength = 0;
+        if (handshake == null) {
+            firstLine(len);
+            return false;
+        }
+        if (len == 0)
+            return true;
+        if (++headercount > MAX_HEADER_COUNT)
+            throw new LimitExedeedException("more than " + MAX_HEADER_COUNT + " header fields");
+        int colon = indexOf((byte) ':', 0, len);
+        if (colon <= 0)
+            throw new InvalidHandshakeException("not an http header");
+        int start = colon + 1;
+        int end = len;
+        while (start < end && isWhitespace(line[start]))
+            start++;
+        while (end > start && isWhitespace(line[end - 1]))
+            end--;
+        handshake.put(headerName(colon), CharsetStringConverter.stringAscii(line, start, end - start));
+        return false;
+    }
+
+    /** parses e.g. "GET /chat HTTP/1.1" or "HTTP/1.1 101 Switching Protocols" */
+    private void firstLine(int len) throws InvalidHandshakeException {
+        int sp1 = indexOf((byte) ' ', 0, len);
+        int sp2 = sp1 == -1 ? -1 : indexOf((byte) ' ', sp1 + 1, len);
+        if (sp2 == -1)
+            throw new InvalidHandshakeException("malformed http request or status line");
+        if (role == Role.CLIENT) {
+            HandshakeFlatServer response = new HandshakeFlatServer();
+            short status = 0;
+            for (int i = sp1 + 1; i < sp2; i++) {
+                if (line[i] < '0' || line[i] > '9' || i - sp1 > 3)
+                    throw new InvalidHandshakeException("malformed http status");
+                status = (short) (status * 10 + line[i] - '0');
+            }
+            response.setHttpStatus(status);
+            response.setHttpStatusMessage(CharsetStringConverter.stringAscii(line, sp2 + 1, len - sp2 - 1));
+            handshake = response;
+        } else {
+            HandshakeFlatClient request = new HandshakeFlatClient();
+            request.setResourceDescriptor(CharsetStringConverter.stringAscii(line, sp1 + 1, sp2 - sp1 - 1));
+            handshake = request;
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private String headerName(int len) {
+        if (len < KNOWN_BY_LENGTH.length && KNOWN_BY_LENGTH[len] != null) {
+            for (String known : KNOWN_BY_LENGTH[len]) {
+                if (equalsIgnoreCase(known, len))
+                    return known;
+            }
+        }
+        return CharsetStringConverter.stringAscii(line, 0, len);
+    }
+
+    private boolean equalsIgnoreCase(String known, int len) {
+        for (int i = 0; i < len; i++) {
+            if (toLower(line[i]) != toLower((byte) known.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -19,6 +19,12 @@ import com.dn15.websocketapi.CloseReason.CloseCodes;
  */
 public abstract class ServerEndpoint extends Endpoint {
 
+    private volatile int maxFrameSize = WebSocketProtocol.MAX_FAME_SIZE;
+
+    private volatile long maxMessageSize = WebSocketProtocol.MAX_MESSAGE_SIZE;
+
+    private volatile int maxHandshakeSize = HandshakeParser.MAX_HANDSHAKE_SIZE;
+
     /**
      * Called on the server side when the socket connection is first
      * established, and the Session handshake has been received. This method
@@ -58,7 +64,9 @@ public abstract class ServerEndpoint extends Endpoint {
      * @param conn
      *            The <tt>Session</tt> instance this event is occurring on.
      * @param blob
-     *            The binary message that was received.
+     *            The binary message that was received. The buffer may be a
+     *            view of the receive buffer and is only valid until this
+     *            method returns.
      */
     public abstract void onMessage(Session conn, ByteBuffer blob);
 
@@ -98,10 +106,87 @@ public abstract class ServerEndpoint extends Endpoint {
      */
     public abstract void onWriteDemand(Session conn);
 
+    /**
+     * Called when <var>conn</var> exceeded its high watermark or has been
+     * drained below its low watermark again.
+     * 
+     * @see Session#isWritable()
+     */
+    public void onWritabilityChanged(Session conn, boolean writable) {
+    }
+
+    /**
+     * Runs <var>task</var> on the thread which decodes the data of
+     * <var>conn</var>, so that it never overlaps a decode of the session.
+     * Endpoints decoding on the calling thread run it right away.
+     */
+    protected void runOnDecoder(Session conn, Runnable task) {
+        task.run();
+    }
+
     public abstract InetSocketAddress getLocalSocketAddress(Session conn);
 
     public abstract InetSocketAddress getRemoteSocketAddress(Session conn);
 
+    /**
+     * Called right before {@link #onOpen(Session)} so that the endpoint can
+     * keep track of its open sessions.
+     */
+    protected void onSessionOpened(Session conn) {
+    }
+
+    /**
+     * Called right before {@link #onClose(Session, String)} once the
+     * connection of <var>conn</var> has been closed.
+     */
+    protected void onSessionClosed(Session conn) {
+    }
+
+    /**
+     * Sets the max payload length of a single frame received by the sessions
+     * of this endpoint. Longer frames are rejected as soon as their header
+     * has been read and the session is closed with
+     * {@link CloseCodes#TOO_BIG}. Applies to sessions opened afterwards.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < 125)
+            throw new IllegalArgumentException("the max frame size must be at least 125");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the max length of a message received by the sessions of this
+     * endpoint once it has been reassembled and decompressed. Longer messages
+     * close the session with {@link CloseCodes#TOO_BIG}.
+     */
+    public void setMaxMessageSize(long maxMessageSize) {
+        if (maxMessageSize < 1)
+            throw new IllegalArgumentException("the max message size must be positive");
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets the max length of the http header of a received handshake.
+     * Connections sending a longer header are dropped.
+     */
+    public void setMaxHandshakeSize(int maxHandshakeSize) {
+        if (maxHandshakeSize < 1)
+            throw new IllegalArgumentException("the max handshake size must be positive");
+        this.maxHandshakeSize = maxHandshakeSize;
+    }
+
+    public int getMaxHandshakeSize() {
+        return maxHandshakeSize;
+    }
+
     public void onHandshakeSent(WebSocketImpl webSocketImpl, ClientHandshake handshakerequest) throws WsIOException {
         // TODO Auto-generated method stub
 
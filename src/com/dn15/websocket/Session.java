@@ -6,6 +6,9 @@ package com.dn15.websocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.Set;
+
+import javax.websocket.MessageHandler;
 
 import com.dn15.websocket.message.Message;
 import com.dn15.websocketapi.CloseReason.CloseCode;
@@ -23,6 +26,20 @@ public interface Session {
         NOT_YET_CONNECTED, CONNECTING, OPEN, CLOSING, CLOSED;
     }
 
+    /**
+     * What happens to a data frame which would exceed the high watermark of
+     * the outgoing queue. The dropping policies only drop frames of whole
+     * messages, fragments are always queued.
+     */
+    public enum SlowConsumerPolicy {
+        /** discard the oldest queued data frames to make room for the new one */
+        DROP_OLDEST,
+        /** discard the new frame */
+        DROP_NEWEST,
+        /** discard the queued data and close with TRY_AGAIN_LATER */
+        CLOSE
+    }
+
     public static final int DEFAULT_PORT = 80;
 
     public void close(CloseCode code);
@@ -63,6 +80,12 @@ public interface Session {
 
     public abstract boolean hasBufferedData();
 
+    /**
+     * Returns false while the data queued to be sent exceeds the high
+     * watermark, until it has been drained below the low watermark.
+     */
+    public abstract boolean isWritable();
+
     /**
      * @returns never returns null
      */
@@ -101,6 +124,22 @@ public interface Session {
      **/
     public abstract String getResourceDescriptor();
 
+    /**
+     * Delivers the messages of type <var>clazz</var> part by part to
+     * <var>handler</var> instead of the {@link ServerEndpoint}. Text parts
+     * consist of complete characters, binary parts are only valid during the
+     * call.
+     * 
+     * @throws IllegalArgumentException
+     *             if <var>clazz</var> is neither String nor ByteBuffer
+     * @throws IllegalStateException
+     *             if a handler is registered for <var>clazz</var> already
+     */
+    public abstract <T> void addMessageHandler(Class<T> clazz, MessageHandler.Partial<T> handler);
+
+    /** Restores the delivery of whole messages to the {@link ServerEndpoint} */
+    public abstract void removeMessageHandler(MessageHandler handler);
 
+    public abstract Set<MessageHandler> getMessageHandlers();
 
 }
@@ -3,40 +3,77 @@ package com.dn15.websocket;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.util.BufferPool;
+import com.dn15.websocket.util.Metrics;
 
 public class SocketChannelReader {
 
-    public static boolean read(final ByteBuffer buf, WebSocketImpl ws, ByteChannel channel) throws IOException {
-        buf.clear();
-        int read = channel.read(buf);
+    /** Max number of queued buffers passed to a single gathering write */
+    public static int MAX_GATHER_BUFFERS = 64;
+
+    /**
+     * Max number of bytes collected for a single gathering write. The last
+     * collected buffer may exceed it.
+     */
+    public static int MAX_GATHER_BYTES = 256 * 1024;
+
+    /**
+     * Max number of bytes written to one connection per selector pass. A
+     * connection with more data queued is continued in the next pass so that
+     * it can not starve the other connections of the reactor.
+     */
+    public static int WRITE_QUOTA = 512 * 1024;
+
+    private static final ThreadLocal<ByteBuffer[]> gatherbuffers = new ThreadLocal<ByteBuffer[]>();
+
+    /**
+     * Reads from <var>channel</var> into a buffer of the
+     * {@link BufferPool#getDefault() default pool}.
+     * 
+     * @return the flipped buffer holding the read data or null if nothing
+     *         could be read. The caller is responsible for releasing the
+     *         returned buffer.
+     */
+    public static ByteBuffer read(WebSocketImpl ws, ByteChannel channel) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buf = pool.acquire(WebSocketImpl.RCV_BUF_SIZE);
+        int read;
+        try {
+            read = channel.read(buf);
+        } catch (IOException e) {
+            pool.release(buf);
+            throw e;
+        }
         buf.flip();
 
         if (read == -1) {
+            pool.release(buf);
             ws.eot();
-            return false;
+            return null;
         }
-        return read != 0;
+        if (read == 0) {
+            pool.release(buf);
+            return null;
+        }
+        if (Metrics.ENABLED)
+            Metrics.getDefault().bytesRead(read);
+        return buf;
     }
 
     /**
      * @see ByteChannel#readMore(ByteBuffer)
-     * @return returns whether there is more data left which can be obtained via
-     *         {@link #readMore(ByteBuffer, WebSocketImpl, ByteChannel)}
+     * @return returns the read data or null if there is no more data left
+     *         which can be obtained via
+     *         {@link #readMore(WebSocketImpl, ByteChannel)}
      **/
-    public static boolean readMore(final ByteBuffer buf, WebSocketImpl ws, ByteChannel channel) throws IOException {
-        buf.clear();
-        int read = channel.read(buf);
-        buf.flip();
-
-        if (read == -1) {
-            ws.eot();
-            return false;
-        }
-        return read != 0;
+    public static ByteBuffer readMore(WebSocketImpl ws, ByteChannel channel) throws IOException {
+        return read(ws, channel);
     }
 
     public int write(ServerSocketChannel socketChannel, ByteBuffer src) throws IOException {
@@ -46,29 +83,105 @@ public class SocketChannelReader {
 
     /** Returns whether the whole outQueue has been flushed */
     public static boolean batch(WebSocketImpl ws, ByteChannel sockchannel) throws IOException {
-        ByteBuffer buffer = ws.outQueue.peek();
-        WritableByteChannel c = null;
-
-        if (buffer == null) {
-            //
-        } else {
-            do {// FIXME writing as much as possible is unfair!!
-                /* int written = */
-                sockchannel.write(buffer);
-                if (buffer.remaining() > 0) {
-                    return false;
-                } else {
-                    ws.outQueue.poll(); // Buffer finished. Remove it.
-                    buffer = ws.outQueue.peek();
-                }
-            } while (buffer != null);
+        if (!ws.outQueue.isEmpty()) {
+            boolean flushed;
+            if (sockchannel instanceof GatheringByteChannel)
+                flushed = gather(ws, (GatheringByteChannel) sockchannel);
+            else
+                flushed = writeEach(ws, sockchannel);
+            if (!flushed)
+                return false;
         }
 
-        if (ws != null && ws.outQueue.isEmpty() && ws.isFlushAndClose() && ws.getRole() == Role.SERVER) {//
+        if (ws.outQueue.isEmpty() && ws.isFlushAndClose() && ws.getRole() == Role.SERVER) {//
             synchronized (ws) {
                 ws.closeConnection();
             }
         }
-        return c == null;
+        return ws.outQueue.isEmpty();
+    }
+
+    /**
+     * Writes the queued buffers in batches of up to {@link #MAX_GATHER_BUFFERS}
+     * buffers or {@link #MAX_GATHER_BYTES} bytes per gathering write, until
+     * the socket does not accept more data or {@link #WRITE_QUOTA} is used up.
+     */
+    private static boolean gather(WebSocketImpl ws, GatheringByteChannel sockchannel) throws IOException {
+        ByteBuffer[] batch = gatherbuffers.get();
+        if (batch == null || batch.length != MAX_GATHER_BUFFERS) {
+            batch = new ByteBuffer[MAX_GATHER_BUFFERS];
+            gatherbuffers.set(batch);
+        }
+        long quota = WRITE_QUOTA;
+        while (quota > 0) {
+            int count = 0;
+            long written = 0;
+            boolean full;
+            try {
+                // see WebSocketImpl#dropQueued and WebSocketImpl#closeConnection
+                synchronized (ws.outQueue) {
+                    long bytes = 0;
+                    for (ByteBuffer b : ws.outQueue) {
+                        if (count == batch.length || bytes >= MAX_GATHER_BYTES)
+                            break;
+                        batch[count++] = b;
+                        bytes += b.remaining();
+                    }
+                    if (count == 0)
+                        return true;
+
+                    written = sockchannel.write(batch, 0, count);
+                    int done = 0;
+                    while (done < count && !batch[done].hasRemaining()) {
+                        finished(ws, batch[done]);
+                        done++;
+                    }
+                    full = done < count;
+                }
+            } finally {
+                Arrays.fill(batch, 0, count, null);
+            }
+            // outside of the lock: may call the listener of the session
+            if (Metrics.ENABLED)
+                Metrics.getDefault().bytesWritten(written);
+            quota -= written;
+            ws.onFlushed(written);
+            if (full)
+                return false;// the socket buffer is full
+        }
+        return ws.outQueue.isEmpty();
+    }
+
+    private static boolean writeEach(WebSocketImpl ws, ByteChannel sockchannel) throws IOException {
+        long quota = WRITE_QUOTA;
+        while (quota > 0) {
+            int written;
+            boolean done;
+            synchronized (ws.outQueue) {
+                ByteBuffer buffer = ws.outQueue.peek();
+                if (buffer == null)
+                    return true;
+                written = sockchannel.write(buffer);
+                done = !buffer.hasRemaining();
+                if (done)
+                    finished(ws, buffer);
+            }
+            if (Metrics.ENABLED)
+                Metrics.getDefault().bytesWritten(written);
+            quota -= written;
+            ws.onFlushed(written);
+            if (!done)
+                return false;
+        }
+        return ws.outQueue.isEmpty();
+    }
+
+    /** Removes a completely written buffer from the outQueue, called with it locked */
+    private static void finished(WebSocketImpl ws, ByteBuffer buffer) {
+        if (ws.outQueue.peek() == buffer) {
+            ws.outQueue.poll();
+            ws.droppableFrames.remove(buffer);
+            BufferPool.getDefault().release(buffer);
+        }
     }
 }
@@ -8,29 +8,51 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.MessageHandler;
 
 import com.dn15.websocket.WebSocketProtocol.CloseHandshakeType;
 import com.dn15.websocket.WebSocketProtocol.HandshakeState;
+import com.dn15.websocket.WebSocketServer.WebSocketReactor;
 import com.dn15.websocket.WebSocketServer.WebSocketWorker;
-import com.dn15.websocket.exception.IncompleteHandshakeException;
 import com.dn15.websocket.exception.InvalidHandshakeException;
+import com.dn15.websocket.exception.LimitExedeedException;
 import com.dn15.websocket.exception.WsIOException;
 import com.dn15.websocket.message.ClientHandshake;
 import com.dn15.websocket.message.CloseMessageBuilder;
+import com.dn15.websocket.message.CompositeBuffer;
 import com.dn15.websocket.message.Handshake;
+import com.dn15.websocket.message.HandshakeFlatServer;
 import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.MessageImpl;
 import com.dn15.websocket.message.ServerHandshake;
 import com.dn15.websocket.message.Message.Opcode;
+import com.dn15.websocket.util.BufferPool;
 import com.dn15.websocket.util.CharsetStringConverter;
 import com.dn15.websocket.util.Log;
+import com.dn15.websocket.util.Metrics;
+import com.dn15.websocket.util.TimingWheel;
+import com.dn15.websocket.util.Utf8Validator;
 import com.dn15.websocketapi.CloseReason;
+import com.dn15.websocketapi.DecodeException;
 import com.dn15.websocketapi.Endpoint;
 import com.dn15.websocketapi.CloseReason.CloseCode;
 import com.dn15.websocketapi.CloseReason.CloseCodes;
@@ -41,10 +63,21 @@ import com.dn15.websocketapi.CloseReason.CloseCodes;
  */
 public class WebSocketImpl implements Session {
 
+    /** @deprecated has no effect, use {@link Log#setLevel(Log.Level)} */
+    @Deprecated
     public static boolean DEBUG = false;
 
     public static int RCV_BUF_SIZE = 8192;
 
+    /** Default number of queued bytes above which a session is not writable */
+    public static int HIGH_WATERMARK = 1024 * 1024;
+
+    /** Default number of queued bytes a session has to drain to be writable again */
+    public static int LOW_WATERMARK = 256 * 1024;
+
+    /** Default reaction on data frames exceeding the high watermark */
+    public static SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.CLOSE;
+
     public SelectionKey key;
 
     /**
@@ -61,31 +94,78 @@ public class WebSocketImpl implements Session {
      */
     public final BlockingQueue<ByteBuffer> inQueue;
 
+    /** Work handed to the decoding thread of this connection, see {@link ServerEndpoint#runOnDecoder} */
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
     /**
      * Helper variable meant to store the thread which ( exclusively ) triggers
      * this objects decode method.
      **/
     public volatile WebSocketWorker workerThread; // TODO reset worker?
 
+    /** The reactor owning {@link #key} which flushes {@link #outQueue} */
+    public volatile WebSocketReactor reactor;
+
+    /** Whether a flush has been requested from {@link #reactor} already */
+    final AtomicBoolean writeDemanded = new AtomicBoolean(false);
+
+    /** The deadlines of this connection, scheduled by {@link #reactor} */
+    TimingWheel.Timeout timer;
+
+    /** The {@link System#nanoTime()} of the select loop which read from this connection last */
+    volatile long lastRead;
+
+    /** The number of data frames received, only written by the decoding thread */
+    volatile long dataFramesIn = 0;
+
     /** When true no further frames may be submitted to be sent */
     private volatile boolean flushandclosestate = false;
 
-    private READYSTATE readystate = READYSTATE.NOT_YET_CONNECTED;
+    private volatile READYSTATE readystate = READYSTATE.NOT_YET_CONNECTED;
+
+    /** whether the handshake has been completed at some point */
+    private boolean opened = false;
 
     /**
      * The listener to notify of WebSocket events.
      */
     private final ServerEndpoint wsl;
 
+    /** The drafts a server side connection is able to speak, in order of preference */
+    public static List<WebSocketProtocol> knownDrafts = Arrays.asList(new Draft_17(), new Draft_10(), new Draft_76(),
+            new Draft_75());
+
     private WebSocketProtocol protocol = new Draft_75();
 
     private Role role;
 
     private Opcode current_continuous_frame_opcode = null;
 
-    /** the bytes of an incomplete received handshake */
+    /** the received fragments of the current message */
+    private final CompositeBuffer fragments = new CompositeBuffer();
+
+    /** validates the current text message fragment by fragment */
+    private final Utf8Validator utf8 = new Utf8Validator();
+
+    /** the bytes of a code point split between two text fragments */
+    private ByteBuffer utf8carry = null;
+
+    private volatile MessageHandler.Partial<String> partialTextHandler = null;
+
+    private volatile MessageHandler.Partial<ByteBuffer> partialBinaryHandler = null;
+
+    /**
+     * the received bytes of an incomplete handshake content or the frames
+     * which followed the handshake in the same read
+     */
     private ByteBuffer tmpHandshakeBytes = ByteBuffer.allocate(0);
 
+    /** parses the http header of the handshake while it is received */
+    private HandshakeParser handshakeParser = null;
+
+    /** the http header of the handshake once it has been parsed completely */
+    private ClientHandshake receivedHandshake = null;
+
     /** stores the handshake sent by this websocket ( Role.CLIENT only ) */
     private ClientHandshake handshakerequest = null;
 
@@ -97,12 +177,44 @@ public class WebSocketImpl implements Session {
 
     private String resourceDescriptor = null;
 
+    /** bytes in {@link #outQueue} which have not been written yet */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+
+    private volatile int highWatermark = HIGH_WATERMARK;
+
+    private volatile int lowWatermark = LOW_WATERMARK;
+
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SLOW_CONSUMER_POLICY;
+
+    /**
+     * The queued frames of whole data messages, which the
+     * {@link SlowConsumerPolicy} may drop. Guarded by the lock of
+     * {@link #outQueue}.
+     */
+    final Set<ByteBuffer> droppableFrames = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    /** held to create and queue a data frame in one go, see {@link #sendMessage(Message)} */
+    private final Object sendLock = new Object();
+
     /**
      * 
      */
     public WebSocketImpl(Endpoint listener, Socket s) {
         this(listener);
         this.role = Role.SERVER;
+        this.protocol = null; // chosen from knownDrafts by the handshake
+    }
+
+    /**
+     * Creates the client side of a connection speaking <var>draft</var>. The
+     * connection is opened by {@link #startHandshake(ClientHandshake)}.
+     */
+    public WebSocketImpl(Endpoint listener, WebSocketProtocol draft) {
+        this(listener);
+        this.protocol = draft.copyInstance();
+        this.protocol.setParseMode(Role.CLIENT);
     }
 
     public WebSocketImpl(Endpoint listener) {
@@ -145,7 +257,11 @@ public class WebSocketImpl implements Session {
         try {
             frames = protocol.translateFrame(socketBuffer);
             for (Message f : frames) {
+                if (Metrics.ENABLED)
+                    Metrics.getDefault().frameIn(f.getOpcode());
                 Opcode curop = f.getOpcode();
+                if (curop == Opcode.TEXT || curop == Opcode.BINARY || curop == Opcode.CONTINUOUS)
+                    dataFramesIn++;
 
                 if (curop == Opcode.CLOSING) {
                     CloseCode code = CloseCodes.NO_STATUS_CODE;
@@ -172,12 +288,21 @@ public class WebSocketImpl implements Session {
                 } else if (curop == Opcode.PONG) {
                     wsl.onPong(this, f);
                     continue;
+                } else if (curop == Opcode.CONTINUOUS) {
+                    if (current_continuous_frame_opcode == null)
+                        throw new WsIOException(CloseCodes.PROTOCOL_ERROR, "Continuous frame without a started message.");
+                    onFragment(current_continuous_frame_opcode, f, f.isFin());
                 } else if (current_continuous_frame_opcode != null) {
                     throw new WsIOException(CloseCodes.PROTOCOL_ERROR, "Continuous frame sequence not completed.");
+                } else if (!f.isFin() || partialTextHandler != null && curop == Opcode.TEXT
+                        || partialBinaryHandler != null && curop == Opcode.BINARY) {
+                    current_continuous_frame_opcode = curop;
+                    onFragment(curop, f, f.isFin());
                 } else if (curop == Opcode.TEXT) {
+                    String text = CharsetStringConverter.stringUtf8(f.getPayloadData());
                     try {
-                        wsl.onMessage(this, CharsetStringConverter.stringUtf8(f.getPayloadData()));
-                    } catch (Exception e) {
+                        wsl.onMessage(this, text);
+                    } catch (RuntimeException e) {
                         wsl.onError(this, e);
                     }
                 } else if (curop == Opcode.BINARY) {
@@ -197,129 +322,247 @@ public class WebSocketImpl implements Session {
         }
     }
 
-    private boolean decodeHandshake(ByteBuffer socketBufferNew) {
-        Log.i("decoding handshake...");
-        ByteBuffer socketBuffer;
-        if (tmpHandshakeBytes.capacity() == 0) {
-            socketBuffer = socketBufferNew;
-        } else {
-            if (tmpHandshakeBytes.remaining() < socketBufferNew.remaining()) {
-                ByteBuffer buf = ByteBuffer.allocate(tmpHandshakeBytes.capacity() + socketBufferNew.remaining());
-                tmpHandshakeBytes.flip();
-                buf.put(tmpHandshakeBytes);
-                tmpHandshakeBytes = buf;
-            }
+    /**
+     * Handles a frame of a fragmented message ( or any message if a partial
+     * handler is set for its type ). Text is validated as it arrives so that
+     * invalid UTF-8 fails fast.
+     */
+    private void onFragment(Opcode type, Message f, boolean fin) throws WsIOException {
+        ByteBuffer owner = f instanceof MessageImpl ? ((MessageImpl) f).getPayloadOwner() : null;
+        synchronized (fragments) {
+            // the fragments may be released by closeConnection meanwhile
+            deliverFragment(type, f.getPayloadData(), owner, fin);
+        }
+    }
 
-            tmpHandshakeBytes.put(socketBufferNew);
-            tmpHandshakeBytes.flip();
-            socketBuffer = tmpHandshakeBytes;
+    private void deliverFragment(Opcode type, ByteBuffer payload, ByteBuffer owner, boolean fin) throws WsIOException {
+        if (fin)
+            current_continuous_frame_opcode = null;
+        if (type == Opcode.TEXT) {
+            if (!utf8.update(payload) || fin && !utf8.isComplete()) {
+                resetFragments();
+                throw new WsIOException(CloseCodes.NOT_CONSISTENT, "Invalid UTF-8");
+            }
+            if (partialTextHandler != null) {
+                String part = decodePart(payload);
+                if (fin)
+                    resetFragments();
+                try {
+                    partialTextHandler.onMessage(part, fin);
+                } catch (RuntimeException e) {
+                    wsl.onError(this, e);
+                }
+                return;
+            }
+        } else if (partialBinaryHandler != null) {
+            try {
+                partialBinaryHandler.onMessage(payload, fin);
+            } catch (RuntimeException e) {
+                wsl.onError(this, e);
+            }
+            return;
         }
-        socketBuffer.mark();
+        if (fragments.size() + payload.remaining() > wsl.getMaxMessageSize()) {
+            resetFragments();
+            throw new LimitExedeedException("message exceeds " + wsl.getMaxMessageSize() + " bytes");
+        }
+        fragments.append(payload, owner);
+        if (!fin)
+            return;
         try {
-            HandshakeState handshakestate = null;
+            if (type == Opcode.TEXT) {
+                String text = CharsetStringConverter.stringUtf8(fragments.getComponents());
+                try {
+                    wsl.onMessage(this, text);
+                } catch (RuntimeException e) {
+                    wsl.onError(this, e);
+                }
+            } else {
+                try {
+                    wsl.onMessage(this, fragments.asByteBuffer());
+                } catch (RuntimeException e) {
+                    wsl.onError(this, e);
+                }
+            }
+        } finally {
+            resetFragments();
+        }
+    }
 
-            try {
-                if (role == Role.SERVER) {
-                    if (protocol == null) {
-                        Log.i("protocol is null!");
-
-                        /*
-                         * for (WebSocketProtocol d : knownDrafts) { d =
-                         * d.copyInstance(); try { d.setParseMode(role);
-                         * socketBuffer.reset(); Handshake tmphandshake =
-                         * d.translateHandshake(socketBuffer); if (tmphandshake
-                         * instanceof ClientHandshake == false) {
-                         * flushAndClose(CloseCodes.PROTOCOL_ERROR,
-                         * "wrong http function", false); return false; }
-                         * ClientHandshake handshake = (ClientHandshake)
-                         * tmphandshake; handshakestate =
-                         * d.acceptHandshakeAsServer(handshake); if
-                         * (handshakestate == HandshakeState.MATCHED) {
-                         * resourceDescriptor =
-                         * handshake.getResourceDescriptor(); ServerHandshake
-                         * response; try { response = (ServerHandshake)
-                         * wsl.onHandshakeReceived(this, d, handshake); } catch
-                         * (WsIOException e) { flushAndClose(e.getCloseCode(),
-                         * e.getMessage(), false); return false; } catch
-                         * (RuntimeException e) { wsl.onError(this, e);
-                         * flushAndClose(CloseCodes.NEVER_CONNECTED,
-                         * e.getMessage(), false); return false; }
-                         * write(d.createHandshake
-                         * (d.postProcessHandshakeResponse(handshake, response),
-                         * role)); protocol = d; open(handshake); return true; }
-                         * } catch (InvalidHandshakeException e) { // go on with
-                         * an other protocol } } if (protocol == null) {
-                         * close(CloseCodes.PROTOCOL_ERROR,
-                         * "no protocol matches"); } return false;
-                         */
-                    } else {
-                        // special case for multiple step handshakes
-                        Handshake tmphandshake = protocol.translateHandshake(socketBuffer);
+    /**
+     * Decodes the complete code points of a validated text fragment. The
+     * bytes of a code point which continues in the next fragment are kept
+     * back.
+     */
+    private String decodePart(ByteBuffer payload) throws WsIOException {
+        int carried = utf8carry == null ? 0 : utf8carry.remaining();
+        CharBuffer out = CharBuffer.allocate(carried + payload.remaining());
+        utf8carry = CharsetStringConverter.decodeUtf8(utf8carry, payload, out);
+        return new String(out.array(), 0, out.position());
+    }
+
+    private void resetFragments() {
+        fragments.clear();
+        utf8.reset();
+        utf8carry = null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void addMessageHandler(Class<T> clazz, MessageHandler.Partial<T> handler) {
+        if (handler == null)
+            throw new IllegalArgumentException("handler must not be null");
+        if (clazz == String.class) {
+            if (partialTextHandler != null)
+                throw new IllegalStateException("a text message handler is registered already");
+            partialTextHandler = (MessageHandler.Partial<String>) handler;
+        } else if (clazz == ByteBuffer.class) {
+            if (partialBinaryHandler != null)
+                throw new IllegalStateException("a binary message handler is registered already");
+            partialBinaryHandler = (MessageHandler.Partial<ByteBuffer>) handler;
+        } else {
+            throw new IllegalArgumentException("only String and ByteBuffer messages can be handled in parts");
+        }
+    }
+
+    @Override
+    public synchronized void removeMessageHandler(MessageHandler handler) {
+        if (handler == null)
+            return;
+        if (handler == partialTextHandler)
+            partialTextHandler = null;
+        if (handler == partialBinaryHandler)
+            partialBinaryHandler = null;
+    }
 
-                        if (tmphandshake instanceof ClientHandshake == false) {
-                            flushAndClose(CloseCodes.PROTOCOL_ERROR, "wrong http function", false);
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        Set<MessageHandler> handlers = new HashSet<MessageHandler>();
+        MessageHandler h = partialTextHandler;
+        if (h != null)
+            handlers.add(h);
+        h = partialBinaryHandler;
+        if (h != null)
+            handlers.add(h);
+        return Collections.unmodifiableSet(handlers);
+    }
+
+    private boolean decodeHandshake(ByteBuffer socketBufferNew) {
+        Log.d("decoding handshake...");
+        ByteBuffer socketBuffer = socketBufferNew;
+        if (tmpHandshakeBytes.hasRemaining()) {
+            // prepend the incomplete handshake content of the previous read
+            socketBuffer = ByteBuffer.allocate(tmpHandshakeBytes.remaining() + socketBufferNew.remaining());
+            socketBuffer.put(tmpHandshakeBytes);
+            socketBuffer.put(socketBufferNew);
+            socketBuffer.flip();
+            tmpHandshakeBytes = ByteBuffer.allocate(0);
+        }
+        try {
+            if (role == Role.SERVER) {
+                if (receivedHandshake == null) {
+                    if (handshakeParser == null)
+                        handshakeParser = new HandshakeParser(role, wsl.getMaxHandshakeSize());
+                    // consumes what has been received so far and continues
+                    // there with the next read
+                    receivedHandshake = (ClientHandshake) handshakeParser.parse(socketBuffer);
+                    if (receivedHandshake == null)
+                        return false;
+                    handshakeParser = null;
+                }
+                List<WebSocketProtocol> drafts = protocol == null ? knownDrafts : Collections.singletonList(protocol);
+                socketBuffer.mark();
+                for (WebSocketProtocol d : drafts) {
+                    if (protocol == null) {
+                        d = d.copyInstance();
+                        d.setParseMode(role);
+                    }
+                    socketBuffer.reset();
+                    try {
+                        if (d.acceptHandshake(receivedHandshake) != HandshakeState.MATCHED)
+                            continue;
+                        if (!d.readHandshakeContent(receivedHandshake, socketBuffer)) {
+                            // wait for the rest of the content
+                            tmpHandshakeBytes = ByteBuffer.allocate(socketBuffer.remaining());
+                            tmpHandshakeBytes.put(socketBuffer);
+                            tmpHandshakeBytes.flip();
                             return false;
                         }
-                        ClientHandshake handshake = (ClientHandshake) tmphandshake;
-                        handshakestate = protocol.acceptHandshake(handshake);
-
-                        if (handshakestate == HandshakeState.MATCHED) {
-                            open(handshake);
-                            return true;
-                        } else {
-                            close(CloseCodes.PROTOCOL_ERROR, "the handshake did finaly not match");
-                        }
-                        return false;
+                        ClientHandshake handshake = receivedHandshake;
+                        receivedHandshake = null;
+                        if (!respond(d, handshake))
+                            return false;
+                        if (socketBuffer != socketBufferNew)
+                            tmpHandshakeBytes = socketBuffer; // frames which followed the handshake
+                        return true;
+                    } catch (InvalidHandshakeException e) {
+                        // go on with an other protocol
                     }
-                } else if (role == Role.CLIENT) {
-                    /*
-                     * 
-                     * protocol.setParseMode(role); Handshake tmphandshake =
-                     * protocol.translateHandshake(socketBuffer); if
-                     * (tmphandshake instanceof ServerHandshake == false) {
-                     * flushAndClose(CloseCodes.PROTOCOL_ERROR,
-                     * "wrong http function", false); return false; } Handshake
-                     * handshake = (ServerHandshake) tmphandshake;
-                     * handshakestate =
-                     * protocol.acceptHandshakeAsClient(handshakerequest,
-                     * handshake); if (handshakestate == HandshakeState.MATCHED)
-                     * { try { wsl.onHandshakeReceived(this, handshakerequest,
-                     * handshake); } catch (WsIOException e) {
-                     * flushAndClose(e.getCloseCode(), e.getMessage(), false);
-                     * return false; } catch (RuntimeException e) {
-                     * wsl.onError(this, e);
-                     * flushAndClose(CloseCodes.NEVER_CONNECTED, e.getMessage(),
-                     * false); return false; } open(handshake); return true; }
-                     * else { close(CloseCodes.PROTOCOL_ERROR, "protocol " +
-                     * protocol + " refuses handshake"); }
-                     */
                 }
-            } catch (InvalidHandshakeException e) {
-                close(e);
-            }
-        } catch (IncompleteHandshakeException e) {
-            if (tmpHandshakeBytes.capacity() == 0) {
-                socketBuffer.reset();
-                int newsize = e.getPreferedSize();
-                if (newsize == 0) {
-                    newsize = socketBuffer.capacity() + 16;
-                } else {
-                    assert (e.getPreferedSize() >= socketBuffer.remaining());
+                close(CloseCodes.PROTOCOL_ERROR, protocol == null ? "no protocol matches"
+                        : "the handshake did finaly not match");
+            } else if (role == Role.CLIENT) {
+                if (handshakeParser == null)
+                    handshakeParser = new HandshakeParser(role, wsl.getMaxHandshakeSize());
+                Handshake response = handshakeParser.parse(socketBuffer);
+                if (response == null)
+                    return false;
+                handshakeParser = null;
+                ServerHandshake handshake = (ServerHandshake) response;
+                if (handshake.getHttpStatus() != 101) {
+                    flushAndClose(CloseCodes.PROTOCOL_ERROR, "unexpected http status " + handshake.getHttpStatus(),
+                            false);
+                    return false;
                 }
-                tmpHandshakeBytes = ByteBuffer.allocate(newsize);
-
-                tmpHandshakeBytes.put(socketBufferNew);
-                // tmpHandshakeBytes.flip();
-            } else {
-                tmpHandshakeBytes.position(tmpHandshakeBytes.limit());
-                tmpHandshakeBytes.limit(tmpHandshakeBytes.capacity());
+                if (protocol.acceptHandshake(handshakerequest, handshake) != HandshakeState.MATCHED) {
+                    flushAndClose(CloseCodes.PROTOCOL_ERROR, "protocol " + protocol + " refuses handshake", false);
+                    return false;
+                }
+                if (socketBuffer != socketBufferNew)
+                    tmpHandshakeBytes = socketBuffer; // frames which followed the handshake
+                open(handshakerequest);
+                return true;
             }
+        } catch (LimitExedeedException e) {
+            // not connected yet, so there is nobody to send a close frame to
+            flushAndClose(e.getCloseCode(), e.getMessage(), false);
+        } catch (WsIOException e) {
+            close(e);
         }
         return false;
     }
 
+    /**
+     * Answers the matched <var>handshake</var> of the client and opens the
+     * connection using <var>d</var>.
+     * 
+     * @return whether the connection has been opened
+     */
+    private boolean respond(WebSocketProtocol d, ClientHandshake handshake) throws InvalidHandshakeException {
+        resourceDescriptor = handshake.getResourceDescriptor();
+        ServerHandshake response;
+        try {
+            response = (ServerHandshake) wsl.onHandshakeReceived(this, d, handshake);
+        } catch (DecodeException e) {
+            flushAndClose(CloseCodes.CANNOT_ACCEPT, e.getMessage(), false);
+            return false;
+        } catch (RuntimeException e) {
+            wsl.onError(this, e);
+            flushAndClose(CloseCodes.NEVER_CONNECTED, e.getMessage(), false);
+            return false;
+        }
+        if (response == null)
+            response = new HandshakeFlatServer();
+        write(d.createHandshake(d.postProcessHandshakeResponse(handshake, response), role));
+        d.setMaxFrameSize(wsl.getMaxFrameSize());
+        d.setMaxMessageSize(wsl.getMaxMessageSize());
+        protocol = d;
+        open(handshake);
+        return true;
+    }
+
     private void close(CloseCode code, String message, boolean remote) {
-        Log.i("Start to close");
+        Log.d("Start to close");
         if (readystate != READYSTATE.CLOSING && readystate != READYSTATE.CLOSED) {
             if (readystate == READYSTATE.OPEN) {
                 if (code == CloseCodes.CLOSED_ABNORMALLY) {
@@ -388,7 +631,7 @@ public class WebSocketImpl implements Session {
      **/
 
     protected synchronized void closeConnection(CloseCode code, String message, boolean remote) {
-        Log.i("Closing connection...");
+        Log.d("Closing connection...");
         if (readystate == READYSTATE.CLOSED) {
             return;
         }
@@ -404,17 +647,32 @@ public class WebSocketImpl implements Session {
                 wsl.onError(this, e);
             }
         }
+        wsl.onSessionClosed(this);
         try {
             this.wsl.onClose(this, message);
         } catch (RuntimeException e) {
             wsl.onError(this, e);
         }
-        if (protocol != null)
+        if (protocol != null) {
             protocol.reset();
+            protocol.release();
+        }
         handshakerequest = null;
 
         readystate = READYSTATE.CLOSED;
-        this.outQueue.clear();
+        if (opened && Metrics.ENABLED)
+            Metrics.getDefault().connectionClosed();
+        synchronized (fragments) {
+            resetFragments();
+        }
+        synchronized (outQueue) {// see SocketChannelReader#gather
+            ByteBuffer queued;
+            while ((queued = this.outQueue.poll()) != null) {
+                BufferPool.getDefault().release(queued);
+            }
+            droppableFrames.clear();
+            queuedBytes.set(0);
+        }
     }
 
     protected void closeConnection(CloseCode code, boolean remote) {
@@ -433,7 +691,7 @@ public class WebSocketImpl implements Session {
     }
 
     protected synchronized void flushAndClose(CloseCode code, String message, boolean remote) {
-        Log.i("Start to flush and close...");
+        Log.d("Start to flush and close...");
         if (flushandclosestate) {
             return;
         }
@@ -476,7 +734,8 @@ public class WebSocketImpl implements Session {
     public void send(ByteBuffer bytes) throws IllegalArgumentException, RuntimeException {
         if (bytes == null)
             throw new IllegalArgumentException("Cannot send 'null' data to a WebSocketImpl.");
-        sendMessages(protocol.createFrames(bytes, role == Role.CLIENT));
+        // the frames must neither move nor keep the buffer of the caller
+        sendMessages(protocol.createFrames(bytes.duplicate(), role == Role.CLIENT));
     }
 
     public void send(byte[] bytes) throws IllegalArgumentException, RuntimeException {
@@ -493,7 +752,19 @@ public class WebSocketImpl implements Session {
 
     @Override
     public void sendMessage(Message framedata) {
-        write(protocol.createBinaryFrame(framedata));
+        Opcode op = framedata.getOpcode();
+        if (Metrics.ENABLED)
+            Metrics.getDefault().frameOut(op);
+        if (op == Opcode.TEXT || op == Opcode.BINARY || op == Opcode.CONTINUOUS) {
+            // frames compressed with context takeover have to be queued in
+            // the order they are compressed, whichever thread sends them
+            synchronized (sendLock) {
+                // a dropped fragment would leave the rest of its message orphaned
+                writeData(protocol.createBinaryFrame(framedata), op != Opcode.CONTINUOUS && framedata.isFin());
+            }
+        } else {
+            write(protocol.createBinaryFrame(framedata));
+        }
     }
 
     @Override
@@ -525,11 +796,159 @@ public class WebSocketImpl implements Session {
         write(protocol.createHandshake(this.handshakerequest, role));
     }
 
+    /**
+     * Queues an already framed buffer of a whole message, e.g. a frame shared
+     * by a broadcast. The frame must match the draft of this session. A buffer
+     * of the {@link BufferPool#getDefault() default pool} is released once
+     * written.
+     */
+    public void sendFrame(ByteBuffer frame) {
+        writeData(frame, true);
+    }
+
+    /**
+     * Queues a data frame. If the frame would exceed the high watermark the
+     * session becomes unwritable and the {@link SlowConsumerPolicy} decides
+     * what happens to the frame. Control frames and frames which are not
+     * <var>droppable</var> are always queued. A session whose frames depend on
+     * the ones before is always closed: the peer could not decompress
+     * anything after a dropped frame.
+     */
+    private void writeData(ByteBuffer buf, boolean droppable) {
+        long excess = queuedBytes.get() + buf.remaining() - highWatermark;
+        if (excess > 0) {
+            setWritable(false);
+            SlowConsumerPolicy policy = slowConsumerPolicy;
+            if (protocol.hasCompressionContext())
+                policy = SlowConsumerPolicy.CLOSE;
+            switch (policy) {
+            case DROP_OLDEST:
+                if (dropQueued(excess) || !droppable)
+                    break;
+                // the frame does not fit anyway
+                dropFrame(buf);
+                return;
+            case DROP_NEWEST:
+                if (!droppable)
+                    break;
+                dropFrame(buf);
+                return;
+            case CLOSE:
+                BufferPool.getDefault().release(buf);
+                dropQueued(Long.MAX_VALUE);
+                // not right here: the writer may hold the lock of an other
+                // session whose close handler publishes to this one
+                wsl.runOnDecoder(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        close(CloseCodes.TRY_AGAIN_LATER, "slow consumer");
+                    }
+                });
+                return;
+            }
+        }
+        write(buf, droppable);
+    }
+
+    private void dropFrame(ByteBuffer buf) {
+        Log.d("Dropping frame for slow consumer");
+        BufferPool.getDefault().release(buf);
+    }
+
+    /**
+     * Removes the oldest queued {@link #droppableFrames} which have not been
+     * started to be written until at least <var>bytes</var> bytes are freed.
+     * 
+     * @return whether enough bytes could be freed
+     */
+    private boolean dropQueued(long bytes) {
+        long freed = 0;
+        synchronized (outQueue) {
+            Iterator<ByteBuffer> it = outQueue.iterator();
+            while (freed < bytes && it.hasNext()) {
+                ByteBuffer b = it.next();
+                if (b.position() != 0 || !droppableFrames.remove(b))
+                    continue;
+                it.remove();
+                freed += b.remaining();
+                BufferPool.getDefault().release(b);
+            }
+        }
+        if (freed > 0)
+            onFlushed(freed);
+        return freed >= bytes;
+    }
+
+    /**
+     * Called once <var>bytes</var> bytes of the {@link #outQueue} have been
+     * written or discarded.
+     */
+    void onFlushed(long bytes) {
+        if (queuedBytes.addAndGet(-bytes) <= lowWatermark)
+            setWritable(true);
+    }
+
+    private void setWritable(boolean w) {
+        if (writable.compareAndSet(!w, w)) {
+            try {
+                wsl.onWritabilityChanged(this, w);
+            } catch (RuntimeException e) {
+                wsl.onError(this, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * Sets the number of queued bytes above which this session becomes
+     * unwritable and the number it has to drain to become writable again.
+     */
+    public void setWriteWatermarks(int low, int high) {
+        if (low < 0 || high < low)
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low <= high");
+        lowWatermark = low;
+        highWatermark = high;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+        slowConsumerPolicy = policy;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /** Returns the number of bytes queued to be sent */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
     private void write(ByteBuffer buf) {
-        Log.i("write(" + buf.remaining() + "): {"
-                + (buf.remaining() > 1000 ? "too big to display" : new String(buf.array())) + "}");
+        write(buf, false);
+    }
+
+    private void write(ByteBuffer buf, boolean droppable) {
+        if (Log.isTraceEnabled())
+            Log.t("write({}): {{}}", buf.remaining(), buf.remaining() > 1000 || !buf.hasArray() ? "too big to display"
+                    : new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
 
-        outQueue.add(buf);
+        queuedBytes.addAndGet(buf.remaining());
+        if (droppable) {
+            synchronized (outQueue) {
+                droppableFrames.add(buf);
+                outQueue.add(buf);
+            }
+        } else {
+            outQueue.add(buf);
+        }
+        if (Metrics.ENABLED)
+            Metrics.getDefault().outQueued(outQueue.size());
         /*
          * try { outQueue.put( buf ); } catch ( InterruptedException e ) {
          * write( buf ); Thread.currentThread().interrupt(); // keep the
@@ -545,10 +964,14 @@ public class WebSocketImpl implements Session {
     }
 
     private void open(ClientHandshake d) {
-        Log.i("open using draft: " + protocol.getClass().getSimpleName());
+        Log.d("open using draft: {}", protocol.getClass().getSimpleName());
         readystate = READYSTATE.OPEN;
+        opened = true;
+        if (Metrics.ENABLED)
+            Metrics.getDefault().connectionOpened();
         try {
             handshakerequest = d;
+            wsl.onSessionOpened(this);
             wsl.onOpen(this);
         } catch (RuntimeException e) {
             wsl.onError(this, e);
@@ -621,7 +1044,7 @@ public class WebSocketImpl implements Session {
     }
 
     public Role getRole() {
-        return null;
+        return role;
     }
 
     @Override
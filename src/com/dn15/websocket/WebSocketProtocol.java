@@ -9,11 +9,10 @@ import java.util.Locale;
 import com.dn15.websocket.Session.Role;
 import com.dn15.websocket.exception.IncompleteHandshakeException;
 import com.dn15.websocket.exception.InvalidHandshakeException;
+import com.dn15.websocket.exception.LimitExedeedException;
 import com.dn15.websocket.exception.WsIOException;
 import com.dn15.websocket.message.ClientHandshake;
 import com.dn15.websocket.message.Handshake;
-import com.dn15.websocket.message.HandshakeImplClient;
-import com.dn15.websocket.message.HandshakeImplServer;
 import com.dn15.websocket.message.Message;
 import com.dn15.websocket.message.MessageImpl;
 import com.dn15.websocket.message.ServerHandshake;
@@ -38,9 +37,17 @@ public abstract class WebSocketProtocol {
         NONE, ONEWAY, TWOWAY
     }
 
-    public static int MAX_FAME_SIZE = 1000 * 1;
+    /** Default max payload length of a single received frame */
+    public static int MAX_FAME_SIZE = 16 * 1024 * 1024;
+
+    /** Default max length of a received message after reassembly and decompression */
+    public static long MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
     public static int INITIAL_FAMESIZE = 64;
 
+    /** number of bytes a frame may take in addition to its payload */
+    protected static final int MAX_FRAME_OVERHEAD = 14;
+
     public static final byte[] FLASH_POLICY_REQUEST = CharsetStringConverter.utf8Bytes("<policy-file-request/>\0");
 
     /**
@@ -50,59 +57,19 @@ public abstract class WebSocketProtocol {
 
     protected Opcode continuousFrameType = null;
 
-    public static ByteBuffer readLine(ByteBuffer buf) {
-        ByteBuffer sbuf = ByteBuffer.allocate(buf.remaining());
-        byte prev = '0';
-        byte cur = '0';
-        while (buf.hasRemaining()) {
-            prev = cur;
-            cur = buf.get();
-            sbuf.put(cur);
-            if (prev == (byte) '\r' && cur == (byte) '\n') {
-                sbuf.limit(sbuf.position() - 2);
-                sbuf.position(0);
-                return sbuf;
-
-            }
-        }
-        // ensure that there wont be any bytes skipped
-        buf.position(buf.position() - sbuf.position());
-        return null;
-    }
+    protected int maxFrameSize = MAX_FAME_SIZE;
 
-    public static String readStringLine(ByteBuffer buf) {
-        ByteBuffer b = readLine(buf);
-        return b == null ? null : CharsetStringConverter.stringAscii(b.array(), 0, b.limit());
-    }
+    protected long maxMessageSize = MAX_MESSAGE_SIZE;
 
+    /**
+     * Reads the http part of a complete handshake from <var>buf</var>.
+     * 
+     * @see HandshakeParser
+     */
     public static Handshake translateHandshakeHttp(ByteBuffer buf, Role role) throws InvalidHandshakeException,
-            IncompleteHandshakeException {
-        Handshake handshake;
-
-        String line = readStringLine(buf);
-        if (line == null)
-            throw new IncompleteHandshakeException(buf.capacity() + 128);
-
-        String[] firstLineTokens = line.split(" ", 3);// eg. HTTP/1.1 101
-                                                      // Switching the Protocols
-        if (firstLineTokens.length != 3) {
-            throw new InvalidHandshakeException();
-        }
-
-        // translating/parsing the request from the CLIENT
-        HandshakeImplClient clienthandshake = new HandshakeImplClient();
-        clienthandshake.setResourceDescriptor(firstLineTokens[1]);
-        handshake = clienthandshake;
-
-        line = readStringLine(buf);
-        while (line != null && line.length() > 0) {
-            String[] pair = line.split(":", 2);
-            if (pair.length != 2)
-                throw new InvalidHandshakeException("not an http header");
-            handshake.put(pair[0], pair[1].replaceFirst("^ +", ""));
-            line = readStringLine(buf);
-        }
-        if (line == null)
+            LimitExedeedException, IncompleteHandshakeException {
+        Handshake handshake = new HandshakeParser(role).parse(buf);
+        if (handshake == null)
             throw new IncompleteHandshakeException();
         return handshake;
     }
@@ -160,18 +127,44 @@ public abstract class WebSocketProtocol {
 
     public abstract void reset();
 
+    /**
+     * Frees the resources held for the connection ( e.g. the contexts of a
+     * negotiated extension ). Called once the connection has been closed.
+     */
+    public void release() {
+    }
+
+    /**
+     * Whether the data frames created by this instance depend on the ones
+     * created before, e.g. compressed with a context kept from message to
+     * message. They have to be sent in the order they are created and none of
+     * them may be dropped.
+     */
+    public boolean hasCompressionContext() {
+        return false;
+    }
+
+    /**
+     * Identifies how the frames created by this instance are encoded.
+     * Connections returning equal values may share frames. Returns null as
+     * soon as the encoding depends on the state of the connection.
+     */
+    public Object getFrameEncoding() {
+        return getClass();
+    }
+
     public List<ByteBuffer> createHandshake(Handshake handshakedata, Role ownrole) {
         return createHandshake(handshakedata, ownrole, true);
     }
 
     public List<ByteBuffer> createHandshake(Handshake handshakedata, Role ownrole, boolean withcontent) {
         StringBuilder bui = new StringBuilder(100);
-        if (handshakedata instanceof HandshakeImplClient) {
+        if (handshakedata instanceof ClientHandshake) {
             bui.append("GET ");
-            bui.append(((HandshakeImplClient) handshakedata).getResourceDescriptor());
+            bui.append(((ClientHandshake) handshakedata).getResourceDescriptor());
             bui.append(" HTTP/1.1");
-        } else if (handshakedata instanceof HandshakeImplServer) {
-            bui.append("HTTP/1.1 101 " + ((HandshakeImplServer) handshakedata).getHttpStatusMessage());
+        } else if (handshakedata instanceof ServerHandshake) {
+            bui.append("HTTP/1.1 101 " + ((ServerHandshake) handshakedata).getHttpStatusMessage());
         } else {
             throw new RuntimeException("unknow role");
         }
@@ -232,16 +225,57 @@ public abstract class WebSocketProtocol {
      * */
     public abstract WebSocketProtocol copyInstance();
 
-    public Handshake translateHandshake(ByteBuffer buf) throws InvalidHandshakeException {
+    public Handshake translateHandshake(ByteBuffer buf) throws InvalidHandshakeException, LimitExedeedException {
         return translateHandshakeHttp(buf, role);
     }
 
+    /**
+     * Reads the content some drafts send after the http header of the
+     * handshake into <var>handshake</var>.
+     * 
+     * @return false if <var>buf</var> does not hold the whole content yet. No
+     *         bytes are consumed in that case.
+     */
+    public boolean readHandshakeContent(Handshake handshake, ByteBuffer buf) {
+        return true;
+    }
+
+    /**
+     * Makes sure that <var>bytecount</var> bytes may be allocated to hold a
+     * received frame.
+     * 
+     * @throws LimitExedeedException
+     *             if the frame would exceed the max frame size
+     */
     public int checkAlloc(int bytecount) throws WsIOException {
         if (bytecount < 0)
             throw new WsIOException(CloseCodes.PROTOCOL_ERROR, "Negative count");
+        if (bytecount - MAX_FRAME_OVERHEAD > maxFrameSize)
+            throw new LimitExedeedException("frame exceeds " + maxFrameSize + " bytes");
         return bytecount;
     }
 
+    /** Sets the max payload length of a received frame */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the max length of a received message. Drafts which decompress
+     * messages enforce it while inflating.
+     */
+    public void setMaxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
     public void setParseMode(Role role) {
         this.role = role;
     }
@@ -15,10 +15,14 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -26,12 +30,58 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.dn15.websocket.Session.Role;
+import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.extension.PerMessageDeflate;
+import com.dn15.websocket.message.Message;
+import com.dn15.websocket.message.Message.Opcode;
+import com.dn15.websocket.message.MessageImpl;
+import com.dn15.websocket.util.BufferPool;
+import com.dn15.websocket.util.CharsetStringConverter;
 import com.dn15.websocket.util.Log;
+import com.dn15.websocket.util.Metrics;
+import com.dn15.websocket.util.TimingWheel;
 import com.dn15.websocketapi.CloseReason.CloseCodes;
 
 public abstract class WebSocketServer extends ServerEndpoint implements Runnable {
     public static int DECODER_NUM = Runtime.getRuntime().availableProcessors() - 1;
 
+    /**
+     * Default number of reactor threads. With 0 reactors the selector thread
+     * accepts and reads all connections itself.
+     */
+    public static int REACTOR_NUM = 0;
+
+    /**
+     * Default max time in milliseconds from accepting a connection until its
+     * handshake has been completed. 0 disables the deadline.
+     */
+    public static int HANDSHAKE_TIMEOUT = 10000;
+
+    /**
+     * Default max time in milliseconds an open session may go without
+     * receiving a data frame before it is closed. 0 disables the timeout.
+     */
+    public static int IDLE_TIMEOUT = 0;
+
+    /**
+     * Default time in milliseconds without receiving anything after which the
+     * server pings a session. 0 disables the pings.
+     */
+    public static int PING_INTERVAL = 30000;
+
+    /**
+     * Default time in milliseconds a peer has to answer a ping or to complete
+     * the close handshake before its connection is dropped.
+     */
+    public static int PONG_TIMEOUT = 10000;
+
+    /** Resolution of the timeouts in milliseconds */
+    public static int TIMER_TICK = 100;
+
+    /** how often a connection without a handshake deadline is checked */
+    private static final long UNCONNECTED_CHECK_NANOS = 1000000000L;
+
     private final Collection<Session> sessions;
 
     private final InetSocketAddress address;
@@ -44,20 +94,30 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
 
     private List<WebSocketWorker> decoders;
 
-    private List<WebSocketImpl> iqueue;
+    /**
+     * Selector threads owning the accepted connections. Empty if the selector
+     * thread serves the connections itself.
+     */
+    private List<WebSocketReactor> reactors;
 
-    private BlockingQueue<ByteBuffer> buffers;
+    private AtomicInteger queueinvokes = new AtomicInteger(0);
 
-    private int queueinvokes = 0;
+    private int reactorinvokes = 0;
 
     private volatile AtomicBoolean isClosed = new AtomicBoolean(false);
 
-    private AtomicInteger queuesize = new AtomicInteger(0);
-
     private WebSocketFactory wsf = new WebSocketFactoryImpl();// TODO
 
     private BufferedReader stdIn;
 
+    private volatile int handshakeTimeout = HANDSHAKE_TIMEOUT;
+
+    private volatile int idleTimeout = IDLE_TIMEOUT;
+
+    private volatile int pingInterval = PING_INTERVAL;
+
+    private volatile int pongTimeout = PONG_TIMEOUT;
+
     public WebSocketServer() {
         this(new InetSocketAddress(Session.DEFAULT_PORT), DECODER_NUM, null);
     }
@@ -71,27 +131,45 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
     }
 
     public WebSocketServer(InetSocketAddress ad, int decodercount, Collection<Session> sc) {
-        if (ad == null || decodercount < 1)
-            throw new IllegalArgumentException("address must not be null and you need at least 1 decoder");
+        this(ad, decodercount, REACTOR_NUM, sc);
+    }
+
+    /**
+     * @param decodercount
+     *            the number of {@link WebSocketWorker} threads decoding the
+     *            received data. With 0 decoders the server runs in event loop
+     *            mode: every connection is decoded by the same thread which
+     *            reads from it, without handing the data to an other thread.
+     * @param reactorcount
+     *            the number of selector threads the accepted connections are
+     *            distributed on. The selector thread itself then only accepts
+     *            new connections. With 0 reactors the selector thread also
+     *            reads from all connections.
+     */
+    public WebSocketServer(InetSocketAddress ad, int decodercount, int reactorcount, Collection<Session> sc) {
+        if (ad == null || decodercount < 0)
+            throw new IllegalArgumentException("address must not be null and the decoder count must not be negative");
+        if (reactorcount < 0)
+            throw new IllegalArgumentException("reactor count must not be negative");
 
+        if (sc == null) {
+            sc = new ConcurrentLinkedQueue<Session>();
+        }
         sessions = sc;
         address = ad;
 
-        iqueue = new LinkedList<WebSocketImpl>();
-
         decoders = new ArrayList<WebSocketWorker>(decodercount);
+        reactors = new ArrayList<WebSocketReactor>(reactorcount);
+        for (int i = 0; i < reactorcount; i++) {
+            reactors.add(new WebSocketReactor());
+        }
 
-        buffers = new LinkedBlockingQueue<ByteBuffer>();
         for (int i = 0; i < decodercount; i++) {
             WebSocketWorker ex = new WebSocketWorker();
             decoders.add(ex);
             ex.start();
         }
         stdIn = new BufferedReader(new InputStreamReader(System.in));
-
-        if (sc == null) {
-            sc = new ConcurrentLinkedQueue<Session>();
-        }
     }
 
     @Override
@@ -109,7 +187,7 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
         if (selectorThread != null)
             throw new IllegalStateException(getClass().getName() + " can only be started once.");
         new Thread(this).start();
-        Log.i("Server started on port: " + getPort());
+        Log.i("Server started on port: {}", getPort());
     }
 
     public void stop(int timeout) throws InterruptedException {
@@ -128,7 +206,7 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
 
         synchronized (this) {
             if (selectorThread != null)
-                if (selectorThread != Thread.currentThread()) {
+                if (selectorThread != Thread.currentThread() && !isReactorThread()) {
                     if (socketsToClose.size() > 0)
                         selectorThread.join(timeout);// isclosed will tell the
                                                      // selectorThread to go
@@ -157,7 +235,7 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
                 } catch (IOException e) {
                     // there is nothing that must be done here
                 }
-                System.out.println("Connection closed because of" + ex);
+                Log.w("Connection closed because of {}", ex);
             }
         }
     }
@@ -172,25 +250,66 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
         }
     }
 
-    protected void allocateBuffers(Session c) throws InterruptedException {
-        if (queuesize.get() >= 2 * decoders.size() + 1) {
+    private void pushBuffer(ByteBuffer buf) {
+        BufferPool.getDefault().release(buf);
+    }
+
+    /**
+     * Passes a filled buffer on to the decoding of <var>ws</var>. In event loop
+     * mode the calling reactor decodes the buffer itself, otherwise it is
+     * queued to the worker of the connection.
+     */
+    private void dispatch(WebSocketImpl ws, ByteBuffer buf) throws InterruptedException {
+        if (!isEventLoopMode()) {
+            ws.inQueue.put(buf);
+            queue(ws);
             return;
         }
-        queuesize.incrementAndGet();
-        buffers.put(ByteBuffer.allocate(WebSocketImpl.RCV_BUF_SIZE));
+        try {
+            ws.decode(buf);
+        } catch (Exception e) {
+            Log.e("Error while reading from remote connection", e);
+        } finally {
+            pushBuffer(buf);
+        }
     }
 
-    private void pushBuffer(ByteBuffer buf) throws InterruptedException {
-        if (buffers.size() > queuesize.intValue())
+    /**
+     * Queues <var>task</var> to the worker of <var>conn</var> or, in event
+     * loop mode, to its reactor. Either way it runs after the current decode
+     * of the session, never during it, and not on the calling stack.
+     */
+    @Override
+    protected void runOnDecoder(Session conn, Runnable task) {
+        WebSocketImpl ws = (WebSocketImpl) conn;
+        ws.tasks.add(task);
+        if (isEventLoopMode()) {
+            ws.reactor.requestTasks(ws);
             return;
-        buffers.put(buf);
-        Log.i("Push buffer: " + buffers.size());
+        }
+        try {
+            queue(ws);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Runs the next task of <var>ws</var>, returns false if there has been none */
+    private boolean runTask(WebSocketImpl ws) {
+        Runnable task = ws.tasks.poll();
+        if (task == null)
+            return false;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            onError(ws, e);
+        }
+        return true;
     }
 
     private void queue(WebSocketImpl ws) throws InterruptedException {
         if (ws.workerThread == null) {
-            ws.workerThread = decoders.get(queueinvokes % decoders.size());
-            queueinvokes++;
+            ws.workerThread = decoders.get((queueinvokes.getAndIncrement() & Integer.MAX_VALUE) % decoders.size());
         }
         ws.workerThread.put(ws);
     }
@@ -200,129 +319,93 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
      * 
      * @param address
      */
-    private void init(InetSocketAddress address) {
+    private WebSocketReactor init(InetSocketAddress address) {
         try {
             selector = Selector.open();
             serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(false);
             serverChannel.socket().bind(new InetSocketAddress(address.getPort()));
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            return new WebSocketReactor(selector);
         } catch (IOException e) {
             handleFatal(null, e);
-            return;
+            return null;
         }
     }
 
     /**
-     * Listenning function
+     * Accepts a pending connection and hands it to the reactor owning it from
+     * now on.
+     * 
+     * @param key
+     * @param acceptor
+     *            the reactor of the selector thread
+     * @throws IOException
+     * @throws InterruptedException
      */
-    private void listen() {
-        SelectionKey key = null;
-        WebSocketImpl conn = null;
-        try {
-            selector.select();
-            Set<SelectionKey> keys = selector.selectedKeys();
-            Iterator<SelectionKey> i = keys.iterator();
+    private void accept(SelectionKey key, WebSocketReactor acceptor) throws IOException, InterruptedException {
+        Log.t("key acceptable...");
 
-            while (i.hasNext()) {
-                key = i.next();
-
-                if (!key.isValid())
-                    continue;
-                process(key, conn);
-                i.remove();
-            }
+        ServerSocketChannel keyChannel = (ServerSocketChannel) key.channel();
+        SocketChannel clientChannel = keyChannel.accept();
+        if (clientChannel == null)
+            return;
+        clientChannel.configureBlocking(false);
+
+        if (reactors.isEmpty()) {
+            acceptor.registerChannel(clientChannel);
+        } else {
+            WebSocketReactor r = reactors.get(reactorinvokes);
+            reactorinvokes = (reactorinvokes + 1) % reactors.size();
+            r.register(clientChannel);
+        }
+    }
 
-            while (!iqueue.isEmpty()) {
-                conn = iqueue.remove(0);
-                ByteChannel c = conn.channel;
-                ByteBuffer buf = buffers.take();
-                try {
-                    if (SocketChannelReader.readMore(buf, conn, c))
-                        iqueue.add(conn);
-                    if (buf.hasRemaining()) {
-                        conn.inQueue.put(buf);
-                        queue(conn);
-                    } else {
-                        pushBuffer(buf);
-                    }
-                } catch (IOException e) {
-                    pushBuffer(buf);
-                    throw e;
-                }
+    private void read(SelectionKey key, List<WebSocketImpl> iqueue) throws IOException, InterruptedException {
+        Log.t("key readable...");
 
+        WebSocketImpl conn = (WebSocketImpl) key.attachment();
+        ByteBuffer buf = SocketChannelReader.read(conn, conn.channel);
+        if (buf != null) {
+            dispatch(conn, buf);
+            if (conn.channel instanceof ByteChannel) {
+                iqueue.add(conn);
             }
-        } catch (CancelledKeyException e) {
-            // an other thread may cancel the key
-        } catch (ClosedByInterruptException e) {
-            return; // do the same stuff as when InterruptedException is
-                    // thrown
-        } catch (IOException ex) {
-            if (key != null)
-                key.cancel();
-            handleIOException(key, conn, ex);
-        } catch (InterruptedException e) {
-            return;// FIXME controlled shutdown (e.g. take care of
-                   // buffermanagement)
         }
     }
 
     /**
-     * SelectionKey function
-     * 
-     * @param key
-     * @param conn
-     * @throws IOException
-     * @throws InterruptedException
+     * Writes as much of the outQueue of <var>conn</var> as the socket accepts.
+     * OP_WRITE stays registered as long as there is data left.
      */
-    private void process(SelectionKey key, WebSocketImpl conn) throws IOException, InterruptedException {
-        if (key.isAcceptable()) {
-            Log.i("key acceptable...");
-
-            ServerSocketChannel keyChannel = (ServerSocketChannel) key.channel();
-            SocketChannel clientChannel = keyChannel.accept();
-            clientChannel.configureBlocking(false);
-            // send back message here
-            clientChannel.register(selector, SelectionKey.OP_READ);
-
-            WebSocketImpl w = wsf.createWebSocket(this, clientChannel.socket());
-            w.key = clientChannel.register(selector, SelectionKey.OP_READ, w);
-            w.channel = wsf.wrapChannel(clientChannel, w.key);
-            allocateBuffers(conn);
-
-        } else if (key.isReadable()) {
-            Log.i("key readable...");
-
-            conn = (WebSocketImpl) key.attachment();
-            ByteBuffer buf = buffers.take();
-            try {
-                if (SocketChannelReader.read(buf, conn, conn.channel)) {
-                    if (buf.hasRemaining()) {
-                        conn.inQueue.put(buf);
-                        queue(conn);
-                        if (conn.channel instanceof ByteChannel) {
-                            iqueue.add(conn);
-                        }
-                    } else
-                        pushBuffer(buf);
-                } else {
-                    pushBuffer(buf);
-                }
-            } catch (IOException e) {
-                pushBuffer(buf);
-                throw e;
-            }
+    private void flush(WebSocketImpl conn) throws IOException {
+        SelectionKey key = conn.key;
+        if (SocketChannelReader.batch(conn, conn.channel)) {
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
 
-            if (key.isWritable()) {
-                Log.i("key writable...");
+    /**
+     * Schedules the outQueue of <var>conn</var> to be flushed by the reactor
+     * owning the connection.
+     */
+    @Override
+    public void onWriteDemand(Session conn) {
+        WebSocketImpl ws = (WebSocketImpl) conn;
+        WebSocketReactor r = ws.reactor;
+        if (r != null)
+            r.requestWrite(ws);
+    }
 
-                conn = (WebSocketImpl) key.attachment();
-                if (SocketChannelReader.batch(conn, conn.channel)) {
-                    if (key.isValid())
-                        key.interestOps(SelectionKey.OP_READ);
-                }
-            }
+    private boolean isReactorThread() {
+        for (WebSocketReactor r : reactors) {
+            if (r.reactorThread == Thread.currentThread())
+                return true;
         }
+        return false;
     }
 
     @Override
@@ -336,16 +419,39 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
         }
         selectorThread.setName("WebsocketSelector" + selectorThread.getId());
 
-        init(address);
+        WebSocketReactor acceptor = init(address);
+        if (acceptor == null)
+            return;
+        acceptor.reactorThread = selectorThread;
+        for (WebSocketReactor r : reactors) {
+            Thread t = new Thread(r);
+            t.setName("WebSocketReactor-" + t.getId());
+            r.reactorThread = t;
+            t.start();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.getDefault().register("server." + getPort() + ".sessions", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return sessions.size();
+                }
+            });
+            Metrics.getDefault().registerMBean();
+        }
         Log.i("Init complete...");
 
         try {
             while (!selectorThread.isInterrupted())
-                listen();
+                acceptor.select();
         } catch (RuntimeException e) {
             // should hopefully never occur
             handleFatal(null, e);
         } finally {
+            Metrics.getDefault().unregister("server." + getPort() + ".sessions");
+            for (WebSocketReactor r : reactors) {
+                if (r.reactorThread != null)
+                    r.reactorThread.interrupt();
+            }
             if (decoders != null) {
                 for (WebSocketWorker w : decoders) {
                     w.interrupt();
@@ -361,6 +467,216 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
         }
     }
 
+    /**
+     * Sends <var>text</var> to all open sessions.
+     * 
+     * @see #broadcast(String, Collection)
+     */
+    public void broadcast(String text) {
+        broadcast(text, sessions);
+    }
+
+    /**
+     * Sends <var>text</var> to all open sessions of <var>receivers</var>. The
+     * text is encoded only once and framed only once per protocol draft. Every
+     * server side session gets a read only view of the same frame queued.<br>
+     * Sessions which negotiated permessage-deflate share one compressed frame
+     * if the server does not take over its compression context ( see
+     * {@link PerMessageDeflate#SERVER_NO_CONTEXT_TAKEOVER} ). Sessions with
+     * context takeover are compressed one by one.
+     */
+    public void broadcast(String text, Collection<Session> receivers) {
+        if (text == null)
+            throw new IllegalArgumentException("Cannot send 'null' data to a WebSocketImpl.");
+        broadcast(Opcode.TEXT, ByteBuffer.wrap(CharsetStringConverter.utf8Bytes(text)), receivers);
+    }
+
+    /**
+     * Sends <var>bytes</var> to all open sessions.
+     * 
+     * @see #broadcast(ByteBuffer, Collection)
+     */
+    public void broadcast(ByteBuffer bytes) {
+        broadcast(bytes, sessions);
+    }
+
+    /**
+     * Sends <var>bytes</var> to all open sessions of <var>receivers</var>. The
+     * data is framed only once per protocol draft.
+     */
+    public void broadcast(ByteBuffer bytes, Collection<Session> receivers) {
+        if (bytes == null)
+            throw new IllegalArgumentException("Cannot send 'null' data to a WebSocketImpl.");
+        broadcast(Opcode.BINARY, bytes, receivers);
+    }
+
+    /**
+     * Sends <var>text</var> to all open sessions of <var>snapshot</var> like
+     * {@link #broadcast(String, Collection)}, but without locking it. The
+     * snapshot must not change while it is iterated, e.g. an array which is
+     * copied on write.
+     */
+    public void broadcastSnapshot(String text, Session[] snapshot) {
+        if (text == null)
+            throw new IllegalArgumentException("Cannot send 'null' data to a WebSocketImpl.");
+        broadcastTo(Opcode.TEXT, ByteBuffer.wrap(CharsetStringConverter.utf8Bytes(text)), Arrays.asList(snapshot));
+    }
+
+    /**
+     * Sends a whole message to all open sessions of <var>snapshot</var> like
+     * {@link #broadcastSnapshot(String, Session[])} when it has been framed by
+     * <var>draft</var> already, e.g. to be kept in a history too. Sessions
+     * with the frame encoding of <var>draft</var> get a read only view of
+     * <var>frame</var>, the others get <var>payload</var> framed for them.
+     * <var>frame</var> must not be changed or released afterwards.
+     */
+    public void broadcastTo(Opcode op, ByteBuffer payload, WebSocketProtocol draft, ByteBuffer frame, Session[] snapshot) {
+        Map<Object, ByteBuffer> frames = new HashMap<Object, ByteBuffer>(4);
+        Object encoding = draft.getFrameEncoding();
+        if (encoding != null)
+            frames.put(encoding, frame);
+        broadcastTo(op, payload, Arrays.asList(snapshot), frames);
+    }
+
+    private void broadcast(Opcode op, ByteBuffer payload, Collection<Session> receivers) {
+        synchronized (receivers) {
+            broadcastTo(op, payload, receivers);
+        }
+    }
+
+    private void broadcastTo(Opcode op, ByteBuffer payload, Iterable<Session> receivers) {
+        broadcastTo(op, payload, receivers, new HashMap<Object, ByteBuffer>(4));
+    }
+
+    /** <var>frames</var> holds the frames created so far by their encoding */
+    private void broadcastTo(Opcode op, ByteBuffer payload, Iterable<Session> receivers, Map<Object, ByteBuffer> frames) {
+        for (Session s : receivers) {
+            if (!s.isOpen())
+                continue;
+            Object encoding = null;
+            if (s instanceof WebSocketImpl && ((WebSocketImpl) s).getRole() == Role.SERVER)
+                encoding = ((WebSocketImpl) s).getDraft().getFrameEncoding();
+            if (encoding == null) {
+                // masked frames and frames compressed with context
+                // takeover can not be shared
+                s.sendMessage(createMessage(op, payload));
+                continue;
+            }
+            WebSocketImpl ws = (WebSocketImpl) s;
+            ByteBuffer frame = frames.get(encoding);
+            if (frame == null) {
+                frame = ws.getDraft().createBinaryFrame(createMessage(op, payload));
+                BufferPool.getDefault().detach(frame);
+                frames.put(encoding, frame);
+            }
+            if (Metrics.ENABLED)
+                Metrics.getDefault().frameOut(op);
+            ws.sendFrame(frame.asReadOnlyBuffer());
+        }
+    }
+
+    private static Message createMessage(Opcode op, ByteBuffer payload) {
+        Message m = new MessageImpl(op);
+        try {
+            m.setPayload(payload.duplicate());
+        } catch (WsIOException e) {
+            throw new RuntimeException("Not sendable" + e);
+        }
+        m.setFin(true);
+        return m;
+    }
+
+    @Override
+    protected void onSessionOpened(Session conn) {
+        sessions.add(conn);
+        WebSocketImpl ws = (WebSocketImpl) conn;
+        WebSocketReactor r = ws.reactor;
+        if (r != null)
+            r.updateTimer(ws);
+    }
+
+    @Override
+    protected void onSessionClosed(Session conn) {
+        sessions.remove(conn);
+        WebSocketImpl ws = (WebSocketImpl) conn;
+        WebSocketReactor r = ws.reactor;
+        if (r != null)
+            r.updateTimer(ws);
+    }
+
+    /**
+     * Sets the max time in milliseconds from accepting a connection until its
+     * handshake has to be completed. 0 disables the deadline. Applies to
+     * connections accepted afterwards.
+     */
+    public void setHandshakeTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        handshakeTimeout = millis;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Sets the max time in milliseconds a session may go without receiving a
+     * data frame before it is closed with {@link CloseCodes#GOING_AWAY}. 0
+     * disables the timeout.
+     */
+    public void setIdleTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        idleTimeout = millis;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds without receiving anything after which a
+     * session is pinged. If nothing has been received
+     * {@link #setPongTimeout(int) the pong timeout} after the ping the
+     * connection is dropped. 0 disables the pings. Drafts without control
+     * frames are never pinged.
+     */
+    public void setPingInterval(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("interval must not be negative");
+        pingInterval = millis;
+    }
+
+    public int getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds a peer has to answer a ping or to complete
+     * the close handshake.
+     */
+    public void setPongTimeout(int millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+        pongTimeout = millis;
+    }
+
+    public int getPongTimeout() {
+        return pongTimeout;
+    }
+
+    private static long nanos(int millis) {
+        return millis * 1000000L;
+    }
+
+    /**
+     * Returns whether the connections are decoded by the reactor they are
+     * bound to instead of by {@link WebSocketWorker} threads.
+     */
+    public boolean isEventLoopMode() {
+        return decoders.isEmpty();
+    }
+
     public Collection<Session> getSessions() {
         return sessions;
     }
@@ -386,12 +702,383 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
         return (InetSocketAddress) getSocket(conn).getRemoteSocketAddress();
     }
 
+    /**
+     * A selector loop owning a set of connections. Every connection is
+     * registered with exactly one reactor which reads from it for the whole
+     * lifetime of the connection. The reactor of the selector thread
+     * additionally accepts new connections.
+     */
+    public class WebSocketReactor implements Runnable {
+
+        private final Selector selector;
+
+        /** channels handed over by the selector thread but not yet registered */
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        /** connections which may have more data to read */
+        private final List<WebSocketImpl> iqueue = new LinkedList<WebSocketImpl>();
+
+        /** connections with data queued by other threads */
+        private final Queue<WebSocketImpl> writeDemands = new ConcurrentLinkedQueue<WebSocketImpl>();
+
+        /** the deadlines of the connections of this reactor */
+        private final TimingWheel timers = new TimingWheel(nanos(TIMER_TICK), System.nanoTime());
+
+        /** connections with tasks to be run by this reactor, see {@link #runOnDecoder} */
+        private final Queue<WebSocketImpl> taskDemands = new ConcurrentLinkedQueue<WebSocketImpl>();
+
+        /** connections opened or closed by other threads whose timer has to be updated */
+        private final Queue<WebSocketImpl> timerUpdates = new ConcurrentLinkedQueue<WebSocketImpl>();
+
+        private volatile Thread reactorThread;
+
+        public WebSocketReactor() {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private WebSocketReactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands a freshly accepted channel to this reactor. May be called from
+         * any thread.
+         */
+        public void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        private void registerChannel(SocketChannel channel) throws IOException, InterruptedException {
+            WebSocketImpl w = wsf.createWebSocket(WebSocketServer.this, channel.socket());
+            w.key = channel.register(selector, SelectionKey.OP_READ, w);
+            w.channel = wsf.wrapChannel(channel, w.key);
+            w.reactor = this;
+            long now = System.nanoTime();
+            w.lastRead = now;
+            SessionTimer t = new SessionTimer(w, timers, now);
+            w.timer = t;
+            t.expire(now);
+        }
+
+        /**
+         * Makes the timer of <var>ws</var> follow the state of the connection
+         * once it has been opened or closed: The timer of a closed connection
+         * is unscheduled, otherwise it expires with the next tick and picks
+         * the next deadline. Other threads leave that to the next loop of the
+         * reactor.
+         */
+        void updateTimer(WebSocketImpl ws) {
+            if (ws.timer == null)
+                return;
+            if (Thread.currentThread() != reactorThread) {
+                timerUpdates.add(ws);
+            } else if (ws.isClosed()) {
+                timers.cancel(ws.timer);
+            } else {
+                timers.schedule(ws.timer, System.nanoTime());
+            }
+        }
+
+        private void updateTimers() {
+            WebSocketImpl ws;
+            while ((ws = timerUpdates.poll()) != null) {
+                if (ws.isClosed())
+                    timers.cancel(ws.timer);
+                else
+                    timers.schedule(ws.timer, System.nanoTime());
+            }
+        }
+
+        /**
+         * Makes this reactor flush the outQueue of <var>ws</var>. Called from
+         * any thread, the reactor thread itself flushes right away.
+         */
+        public void requestWrite(WebSocketImpl ws) {
+            if (Thread.currentThread() == reactorThread) {
+                try {
+                    flush(ws);
+                } catch (CancelledKeyException e) {
+                    // the connection has been closed meanwhile
+                } catch (IOException e) {
+                    ws.key.cancel();
+                    handleIOException(ws.key, ws, e);
+                }
+                return;
+            }
+            if (ws.writeDemanded.compareAndSet(false, true)) {
+                writeDemands.add(ws);
+                selector.wakeup();
+            }
+        }
+
+        /** Makes this reactor run the tasks of <var>ws</var> with its next loop */
+        void requestTasks(WebSocketImpl ws) {
+            taskDemands.add(ws);
+            // also from the reactor itself: the next select must not block
+            selector.wakeup();
+        }
+
+        private void runTasks() {
+            WebSocketImpl ws;
+            while ((ws = taskDemands.poll()) != null) {
+                while (runTask(ws))
+                    ;
+            }
+        }
+
+        private void flushDemanded() {
+            WebSocketImpl ws;
+            while ((ws = writeDemands.poll()) != null) {
+                ws.writeDemanded.set(false);
+                try {
+                    flush(ws);
+                } catch (CancelledKeyException e) {
+                    // the connection has been closed meanwhile
+                } catch (IOException e) {
+                    ws.key.cancel();
+                    handleIOException(ws.key, ws, e);
+                }
+            }
+        }
+
+        private void registerPending() throws InterruptedException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    registerChannel(channel);
+                } catch (IOException e) {
+                    handleIOException(null, null, e);
+                    try {
+                        channel.close();
+                    } catch (IOException e1) {
+                        // there is nothing that must be done here
+                    }
+                }
+            }
+        }
+
+        /**
+         * Listenning function
+         */
+        private void select() {
+            SelectionKey key = null;
+            WebSocketImpl conn = null;
+            try {
+                if (timers.size() > 0)
+                    selector.select(TIMER_TICK);
+                else
+                    selector.select();
+                long start = System.nanoTime();
+                registerPending();
+                flushDemanded();
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> i = keys.iterator();
+
+                while (i.hasNext()) {
+                    key = i.next();
+                    i.remove();
+
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept(key, this);
+                    } else {
+                        conn = (WebSocketImpl) key.attachment();
+                        if (key.isReadable()) {
+                            conn.lastRead = start;
+                            read(key, iqueue);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            Log.t("key writable...");
+                            flush(conn);
+                        }
+                    }
+                    conn = null;
+                }
+                key = null;
+
+                while (!iqueue.isEmpty()) {
+                    conn = iqueue.remove(0);
+                    ByteBuffer buf = SocketChannelReader.readMore(conn, conn.channel);
+                    if (buf != null) {
+                        conn.lastRead = start;
+                        iqueue.add(conn);
+                        dispatch(conn, buf);
+                    }
+                }
+                conn = null;
+                updateTimers();
+                timers.advance(start);
+                runTasks();
+                if (Metrics.ENABLED)
+                    Metrics.getDefault().selectorLoop(System.nanoTime() - start);
+            } catch (CancelledKeyException e) {
+                // an other thread may cancel the key
+            } catch (ClosedByInterruptException e) {
+                return; // do the same stuff as when InterruptedException is
+                        // thrown
+            } catch (IOException ex) {
+                if (key != null)
+                    key.cancel();
+                handleIOException(key, conn, ex);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;// FIXME controlled shutdown (e.g. take care of
+                       // buffermanagement)
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted())
+                    select();
+            } catch (RuntimeException e) {
+                handleFatal(null, e);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    onError(null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The single timeout of a connection. Every time it expires it checks the
+     * deadline the connection is in and schedules itself for the next one:
+     * First the handshake, then the idle timeout and the keepalive ping of the
+     * open session and at last the close handshake. Reads only update
+     * {@link WebSocketImpl#lastRead}, the timer is not touched for them.<br>
+     * The timer runs on the reactor, it hands the closes to
+     * {@link #runOnDecoder(Session, Runnable)} so that they never interfere
+     * with the decoding of a frame.
+     */
+    private class SessionTimer extends TimingWheel.Timeout {
+
+        private final WebSocketImpl ws;
+
+        private final TimingWheel wheel;
+
+        private final long accepted;
+
+        /** when the unanswered ping has been sent, 0 if none is outstanding */
+        private long pingSent = 0;
+
+        /** the data frame count of the session when it has been seen last */
+        private long framesSeen = -1;
+
+        private long idleSince;
+
+        /** when the connection has been seen closing first, 0 if not yet */
+        private long closingSince = 0;
+
+        SessionTimer(WebSocketImpl ws, TimingWheel wheel, long accepted) {
+            this.ws = ws;
+            this.wheel = wheel;
+            this.accepted = accepted;
+        }
+
+        @Override
+        protected void expire(long now) {
+            if (ws.isClosed())
+                return;
+            if (ws.isClosing() || ws.isFlushAndClose()) {
+                if (closingSince == 0) {
+                    closingSince = now;
+                } else if (now - closingSince >= nanos(pongTimeout)) {
+                    Log.d("Close handshake timed out");
+                    close(CloseCodes.CLOSED_ABNORMALLY, "close handshake timed out", false);
+                    return;
+                }
+                wheel.schedule(this, closingSince + nanos(pongTimeout));
+            } else if (!ws.isOpen()) {
+                int timeout = handshakeTimeout;
+                if (timeout == 0) {
+                    wheel.schedule(this, now + UNCONNECTED_CHECK_NANOS);
+                } else if (now - accepted >= nanos(timeout)) {
+                    Log.d("Handshake timed out");
+                    close(CloseCodes.NEVER_CONNECTED, "handshake timed out", false);
+                } else {
+                    wheel.schedule(this, accepted + nanos(timeout));
+                }
+            } else {
+                expireOpen(now);
+            }
+        }
+
+        private void expireOpen(long now) {
+            long frames = ws.dataFramesIn;
+            if (frames != framesSeen) {
+                framesSeen = frames;
+                idleSince = now;
+            }
+            long next = Long.MAX_VALUE;
+            int idle = idleTimeout;
+            if (idle > 0) {
+                if (now - idleSince >= nanos(idle)) {
+                    Log.d("Idle timeout");
+                    close(CloseCodes.GOING_AWAY, "idle timeout", true);
+                    // the close handshake is timed from here
+                    closingSince = now;
+                    wheel.schedule(this, closingSince + nanos(pongTimeout));
+                    return;
+                }
+                next = idleSince + nanos(idle);
+            }
+            int interval = pingInterval;
+            if (interval > 0 && ws.getDraft() instanceof Draft_10) {
+                long lastRead = ws.lastRead;
+                if (pingSent != 0 && lastRead - pingSent > 0)
+                    pingSent = 0;
+                if (pingSent != 0) {
+                    if (now - pingSent >= nanos(pongTimeout)) {
+                        Log.d("Ping timed out");
+                        close(CloseCodes.CLOSED_ABNORMALLY, "ping timed out", false);
+                        return;
+                    }
+                    next = Math.min(next, pingSent + nanos(pongTimeout));
+                } else if (now - lastRead >= nanos(interval)) {
+                    ws.sendMessage(createMessage(Opcode.PING, ByteBuffer.allocate(0)));
+                    pingSent = now;
+                    next = Math.min(next, now + nanos(pongTimeout));
+                } else {
+                    next = Math.min(next, lastRead + nanos(interval));
+                }
+            }
+            if (next != Long.MAX_VALUE)
+                wheel.schedule(this, next);
+        }
+
+        /**
+         * Closes the session on the thread which decodes it, with a close
+         * handshake if <var>handshake</var> is set.
+         */
+        private void close(final CloseCodes code, final String reason, final boolean handshake) {
+            runOnDecoder(ws, new Runnable() {
+                @Override
+                public void run() {
+                    if (handshake)
+                        ws.close(code, reason);
+                    else
+                        ws.closeConnection(code, reason);
+                }
+            });
+        }
+    }
+
     public class WebSocketWorker extends Thread {
 
         private BlockingQueue<WebSocketImpl> iqueue;
 
         public WebSocketWorker() {
-            Log.i("Worker " + getId() + "is on...");
+            Log.d("Worker {} is on...", getId());
 
             iqueue = new LinkedBlockingQueue<WebSocketImpl>();
             setName("WebSocketWorker-" + getId());
@@ -405,23 +1092,29 @@ public abstract class WebSocketServer extends ServerEndpoint implements Runnable
 
         public void put(WebSocketImpl ws) throws InterruptedException {
             iqueue.put(ws);
+            if (Metrics.ENABLED)
+                Metrics.getDefault().workerQueued(iqueue.size());
         }
 
         @Override
         public void run() {
-            Log.i("Worker " + getId() + " is working...");
+            Log.d("Worker {} is working...", getId());
             WebSocketImpl ws = null;
             try {
                 while (true) {
                     ByteBuffer buf = null;
                     ws = iqueue.take();
                     buf = ws.inQueue.poll();
-                    assert (ws != null && buf != null);
+                    // every put is either a buffer or a task
+                    if (buf == null) {
+                        runTask(ws);
+                        continue;
+                    }
                     try {
-                        Log.i("Worker " + getId() + " decode buffer...");
+                        Log.t("Worker {} decode buffer...", getId());
                         ws.decode(buf);
                     } catch (Exception e) {
-                        System.err.println("Error while reading from remote connection: " + e);
+                        Log.e("Error while reading from remote connection", e);
                     } finally {
                         pushBuffer(buf);
                     }
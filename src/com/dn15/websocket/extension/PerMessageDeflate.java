@@ -0,0 +1,309 @@
+package com.dn15.websocket.extension;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.dn15.websocket.exception.InvalidFrameException;
+import com.dn15.websocket.exception.LimitExedeedException;
+import com.dn15.websocket.exception.WsIOException;
+import com.dn15.websocket.util.BufferPool;
+
+/**
+ * The permessage-deflate extension as specified by
+ * http://tools.ietf.org/html/rfc7692<br>
+ * An instance holds the negotiated parameters and the compression contexts of
+ * a single connection. It must not be shared between connections.<br>
+ * java.util.zip always compresses with a 32K window. Offers which restrict
+ * the window of the server ( server_max_window_bits &lt; 15 ) are therefore
+ * declined. Any client window can be inflated.
+ */
+public class PerMessageDeflate {
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    /** Whether offers of permessage-deflate are accepted at all */
+    public static boolean ENABLED = true;
+
+    /**
+     * Whether the server resets its compression context after every message
+     * even if the client did not ask for it. Makes compressed frames
+     * independent of the connection so that they can be shared.
+     */
+    public static boolean SERVER_NO_CONTEXT_TAKEOVER = false;
+
+    /** Messages with a smaller payload are sent uncompressed */
+    public static int MIN_COMPRESS_SIZE = 64;
+
+    public static int COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int MAX_WINDOW_BITS = 15;
+
+    private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private final boolean serverNoContextTakeover;
+
+    private final boolean clientNoContextTakeover;
+
+    private final Deflater deflater;
+
+    private final Inflater inflater;
+
+    private boolean ended = false;
+
+    /** copies of payloads which are not on the heap, reused */
+    private byte[] inscratch = new byte[0];
+
+    /** output for buffers which are not on the heap, reused */
+    private byte[] outscratch = new byte[0];
+
+    private final byte[] probe = new byte[1];
+
+    public PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        deflater = new Deflater(COMPRESSION_LEVEL, true);
+        inflater = new Inflater(true);
+    }
+
+    /**
+     * Picks the first acceptable permessage-deflate offer of a
+     * Sec-WebSocket-Extensions header.
+     *
+     * @return the extension configured as negotiated or null if no offer is
+     *         acceptable
+     */
+    public static PerMessageDeflate negotiate(String extensions) {
+        if (!ENABLED || extensions == null || extensions.length() == 0)
+            return null;
+        for (String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            if (!EXTENSION_NAME.equals(params[0].trim()))
+                continue;
+            boolean servernocontext = SERVER_NO_CONTEXT_TAKEOVER;
+            boolean clientnocontext = false;
+            boolean acceptable = true;
+            for (int i = 1; i < params.length && acceptable; i++) {
+                String param = params[i].trim();
+                String value = null;
+                int eq = param.indexOf('=');
+                if (eq != -1) {
+                    value = param.substring(eq + 1).trim();
+                    if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+                        value = value.substring(1, value.length() - 1);
+                    param = param.substring(0, eq).trim();
+                }
+                if (param.equals("server_no_context_takeover") && value == null) {
+                    servernocontext = true;
+                } else if (param.equals("client_no_context_takeover") && value == null) {
+                    clientnocontext = true;
+                } else if (param.equals("server_max_window_bits")) {
+                    acceptable = windowBits(value) == MAX_WINDOW_BITS;
+                } else if (param.equals("client_max_window_bits")) {
+                    acceptable = value == null || windowBits(value) != -1;
+                } else {
+                    acceptable = false;
+                }
+            }
+            if (acceptable)
+                return new PerMessageDeflate(servernocontext, clientnocontext);
+        }
+        return null;
+    }
+
+    private static int windowBits(String value) {
+        if (value == null)
+            return -1;
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= MAX_WINDOW_BITS ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the value of the Sec-WebSocket-Extensions response header */
+    public String getResponseHeader() {
+        StringBuilder bui = new StringBuilder(EXTENSION_NAME);
+        if (serverNoContextTakeover)
+            bui.append("; server_no_context_takeover");
+        if (clientNoContextTakeover)
+            bui.append("; client_no_context_takeover");
+        return bui.toString();
+    }
+
+    public boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    public boolean isClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    /** Whether a message of the given size is worth being compressed */
+    public boolean shouldCompress(int payloadsize) {
+        return payloadsize >= MIN_COMPRESS_SIZE;
+    }
+
+    /**
+     * Compresses the remaining content of <var>payload</var> as one whole
+     * message. A payload on the heap is compressed in place, others are copied
+     * into a scratch array kept by this instance.
+     *
+     * @return the compressed data without the trailing 0x00 0x00 0xff 0xff in
+     *         a buffer of the {@link BufferPool#getDefault() default pool}
+     *         which the caller has to release, or null if the extension has
+     *         already been ended
+     */
+    public synchronized ByteBuffer compress(ByteBuffer payload) {
+        if (ended)
+            return null;
+        int len = payload.remaining();
+        input(payload, true);
+        // stored blocks add 5 bytes per 16K, the sync flush a few more
+        ByteBuffer out = BufferPool.getDefault().acquire(len + (len >> 12) + 64);
+        while (true) {
+            deflate(out);
+            if (out.hasRemaining())
+                break;
+            out = grow(out, out.limit() * 2);
+        }
+        if (serverNoContextTakeover)
+            deflater.reset();
+        // strip the empty deflate block appended by the sync flush
+        int end = out.position();
+        if (end >= 4 && out.get(end - 4) == 0 && out.get(end - 3) == 0 && out.get(end - 2) == (byte) 0xFF
+                && out.get(end - 1) == (byte) 0xFF)
+            out.position(end - 4);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decompresses the payload of one frame of a compressed message. The
+     * frames of a message must be passed in order.
+     *
+     * @param fin
+     *            whether <var>payload</var> is the last frame of the message
+     * @param limit
+     *            max number of bytes the payload may be inflated to
+     * @return the inflated payload in a buffer of the
+     *         {@link BufferPool#getDefault() default pool} which the caller
+     *         has to release
+     * @throws LimitExedeedException
+     *             as soon as the inflated payload exceeds <var>limit</var>
+     */
+    public synchronized ByteBuffer decompress(ByteBuffer payload, boolean fin, long limit) throws WsIOException {
+        if (ended)
+            throw new InvalidFrameException("permessage-deflate already ended");
+        int max = (int) Math.min(limit, Integer.MAX_VALUE - 8);
+        ByteBuffer out = BufferPool.getDefault().acquire(Math.max(0, Math.min(max, Math.max(1024, payload.remaining() * 4))));
+        input(payload, false);
+        out = inflate(out, max);
+        if (fin) {
+            inflater.setInput(TAIL);
+            out = inflate(out, max);
+            if (clientNoContextTakeover)
+                inflater.reset();
+        }
+        out.flip();
+        return out;
+    }
+
+    /** Inflates into <var>out</var>, growing it up to max bytes. Releases it on failure. */
+    private ByteBuffer inflate(ByteBuffer out, int max) throws WsIOException {
+        boolean done = false;
+        try {
+            while (true) {
+                if (!out.hasRemaining()) {
+                    if (out.position() >= max) {
+                        // anything left means the limit is exceeded
+                        if (inflater.inflate(probe) > 0)
+                            throw new LimitExedeedException("inflated message exceeds " + max + " bytes");
+                        done = true;
+                        return out;
+                    }
+                    out = grow(out, (int) Math.min((long) Math.max(out.position(), 512) * 2, max));
+                }
+                int n;
+                if (out.hasArray()) {
+                    n = inflater.inflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+                    out.position(out.position() + n);
+                } else {
+                    n = inflater.inflate(scratchOut(out.remaining()), 0, out.remaining());
+                    out.put(outscratch, 0, n);
+                }
+                if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    done = true;
+                    return out;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidFrameException("bad compressed payload: " + e.getMessage());
+        } finally {
+            if (!done)
+                BufferPool.getDefault().release(out);
+        }
+    }
+
+    private void deflate(ByteBuffer out) {
+        if (out.hasArray()) {
+            int n = deflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining(), Deflater.SYNC_FLUSH);
+            out.position(out.position() + n);
+        } else {
+            int n = deflater.deflate(scratchOut(out.remaining()), 0, out.remaining(), Deflater.SYNC_FLUSH);
+            out.put(outscratch, 0, n);
+        }
+    }
+
+    /**
+     * Passes the remaining content of <var>payload</var> to the deflater or
+     * the inflater and consumes it. Only a payload outside of the heap is
+     * copied.
+     */
+    private void input(ByteBuffer payload, boolean deflate) {
+        int len = payload.remaining();
+        byte[] in;
+        int off;
+        if (payload.hasArray()) {
+            in = payload.array();
+            off = payload.arrayOffset() + payload.position();
+        } else {
+            if (inscratch.length < len)
+                inscratch = new byte[Math.max(len, inscratch.length * 2)];
+            payload.duplicate().get(inscratch, 0, len);
+            in = inscratch;
+            off = 0;
+        }
+        if (deflate)
+            deflater.setInput(in, off, len);
+        else
+            inflater.setInput(in, off, len);
+        payload.position(payload.limit());
+    }
+
+    private byte[] scratchOut(int len) {
+        if (outscratch.length < len)
+            outscratch = new byte[Math.max(len, outscratch.length * 2)];
+        return outscratch;
+    }
+
+    /** Moves the content of <var>out</var> into a pooled buffer of <var>size</var> bytes */
+    private static ByteBuffer grow(ByteBuffer out, int size) {
+        ByteBuffer bigger = BufferPool.getDefault().acquire(size);
+        out.flip();
+        bigger.put(out);
+        BufferPool.getDefault().release(out);
+        return bigger;
+    }
+
+    /** Frees the native zlib resources. The instance can not be used anymore. */
+    public synchronized void end() {
+        if (ended)
+            return;
+        ended = true;
+        deflater.end();
+        inflater.end();
+    }
+}
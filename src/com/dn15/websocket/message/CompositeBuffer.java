@@ -0,0 +1,120 @@
+package com.dn15.websocket.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dn15.websocket.util.BufferPool;
+
+/**
+ * Sequence of buffers which together form the payload of a fragmented
+ * message.<br>
+ * Appending a fragment never copies what has been received before. A fragment
+ * of a pooled receive buffer is kept as a view of it and the buffer is
+ * {@link BufferPool#retain(ByteBuffer) retained}; small fragments are copied
+ * into pooled buffers instead, so they do not pin big receive buffers. All
+ * buffers are handed back by {@link #clear()}.
+ */
+public class CompositeBuffer {
+
+    /**
+     * Fragments smaller than the buffer they are a view of divided by this
+     * ratio are copied instead of retained
+     */
+    public static int RETAIN_RATIO = 4;
+
+    private final List<ByteBuffer> components = new ArrayList<ByteBuffer>();
+
+    /** for every component the pooled buffer to release, the component itself if it is a copy */
+    private final List<ByteBuffer> owners = new ArrayList<ByteBuffer>();
+
+    private long size = 0;
+
+    /**
+     * Appends a copy of the remaining content of <var>fragment</var>. The
+     * position of <var>fragment</var> is not changed.
+     */
+    public void append(ByteBuffer fragment) {
+        append(fragment, null);
+    }
+
+    /**
+     * Appends the remaining content of <var>fragment</var>, which is a view of
+     * the pooled buffer <var>owner</var>. The position of <var>fragment</var>
+     * is not changed.<br>
+     * The content is copied if <var>owner</var> is null or not acquired from
+     * the pool, because then it may be reused for the next read.
+     */
+    public void append(ByteBuffer fragment, ByteBuffer owner) {
+        int length = fragment.remaining();
+        if (length == 0)
+            return;
+        BufferPool pool = BufferPool.getDefault();
+        if (owner != null && (long) length * RETAIN_RATIO >= owner.capacity() && pool.retain(owner)) {
+            components.add(fragment.duplicate());
+            owners.add(owner);
+            size += length;
+            return;
+        }
+        int last = components.size() - 1;
+        if (last >= 0 && components.get(last) == owners.get(last)) {
+            ByteBuffer tail = components.get(last);
+            if (tail.capacity() - tail.limit() >= length) {
+                int position = tail.position();
+                tail.position(tail.limit());
+                tail.limit(tail.limit() + length);
+                tail.put(fragment.duplicate());
+                tail.position(position);
+                size += length;
+                return;
+            }
+        }
+        ByteBuffer component = pool.acquire(length);
+        component.put(fragment.duplicate());
+        component.flip();
+        components.add(component);
+        owners.add(component);
+        size += length;
+    }
+
+    /** Total number of bytes of all components */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** The components, only valid until {@link #clear()} is called */
+    public List<ByteBuffer> getComponents() {
+        return components;
+    }
+
+    /**
+     * Returns the whole content as a single buffer. A single component is
+     * returned as is. Otherwise the components are gathered once into a new
+     * buffer. The returned buffer is only valid until {@link #clear()} is
+     * called.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (components.size() == 1)
+            return components.get(0).duplicate();
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("message too big for a single buffer");
+        ByteBuffer whole = ByteBuffer.allocate((int) size);
+        for (ByteBuffer component : components)
+            whole.put(component.duplicate());
+        whole.flip();
+        return whole;
+    }
+
+    /** Releases all components */
+    public void clear() {
+        for (ByteBuffer owner : owners)
+            BufferPool.getDefault().release(owner);
+        components.clear();
+        owners.clear();
+        size = 0;
+    }
+}
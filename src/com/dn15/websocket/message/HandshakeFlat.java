@@ -0,0 +1,149 @@
+package com.dn15.websocket.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Handshake whose fields are kept in flat parallel arrays instead of a
+ * TreeMap.<br>
+ * The well known websocket headers have a fixed slot each. Other fields are
+ * looked up by the hash of their lower case name. Names are compared case
+ * insensitively and iterated in the same order as {@link HandshakeImpl} does.
+ */
+public class HandshakeFlat implements Handshake {
+	static final String[] WELL_KNOWN = { "Host", "Upgrade", "Connection", "Origin", "Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol", "Sec-WebSocket-Accept", "Sec-WebSocket-Key1", "Sec-WebSocket-Key2", "Sec-WebSocket-Origin", "Sec-WebSocket-Location" };
+
+	private static final int[] WELL_KNOWN_HASHES = new int[ WELL_KNOWN.length ];
+
+	static {
+		for( int i = 0 ; i < WELL_KNOWN.length ; i++ )
+			WELL_KNOWN_HASHES[ i ] = hash( WELL_KNOWN[ i ] );
+	}
+
+	private byte[] content;
+
+	/** the names of the well known fields as they have been put first */
+	private final String[] knownnames = new String[ WELL_KNOWN.length ];
+	private final String[] knownvalues = new String[ WELL_KNOWN.length ];
+
+	private String[] names = new String[ 8 ];
+	private String[] values = new String[ 8 ];
+	private int[] hashes = new int[ 8 ];
+	private int size = 0;
+
+	public HandshakeFlat() {
+	}
+
+	@Override
+	public Iterator<String> iterateHttpFields() {
+		List<String> fields = new ArrayList<String>( size + WELL_KNOWN.length );
+		for( String name : knownnames ) {
+			if( name != null )
+				fields.add( name );
+		}
+		for( int i = 0 ; i < size ; i++ )
+			fields.add( names[ i ] );
+		Collections.sort( fields, String.CASE_INSENSITIVE_ORDER );
+		return Collections.unmodifiableList( fields ).iterator();// Safety first
+	}
+
+	@Override
+	public String getFieldValue( String name ) {
+		String s;
+		int hash = hash( name );
+		int slot = wellKnownSlot( name, hash );
+		if( slot != -1 ) {
+			s = knownvalues[ slot ];
+		} else {
+			int i = indexOf( name, hash );
+			s = i == -1 ? null : values[ i ];
+		}
+		if( s == null ) {
+			return "";
+		}
+		return s;
+	}
+
+	@Override
+	public byte[] getContent() {
+		return content;
+	}
+
+	@Override
+	public void setContent( byte[] content ) {
+		this.content = content;
+	}
+
+	@Override
+	public void put( String name, String value ) {
+		int hash = hash( name );
+		int slot = wellKnownSlot( name, hash );
+		if( slot != -1 ) {
+			if( knownnames[ slot ] == null )
+				knownnames[ slot ] = name;
+			knownvalues[ slot ] = value;
+			return;
+		}
+		int i = indexOf( name, hash );
+		if( i != -1 ) {
+			values[ i ] = value;
+			return;
+		}
+		if( size == names.length ) {
+			String[] n = new String[ size * 2 ];
+			String[] v = new String[ size * 2 ];
+			int[] h = new int[ size * 2 ];
+			System.arraycopy( names, 0, n, 0, size );
+			System.arraycopy( values, 0, v, 0, size );
+			System.arraycopy( hashes, 0, h, 0, size );
+			names = n;
+			values = v;
+			hashes = h;
+		}
+		names[ size ] = name;
+		values[ size ] = value;
+		hashes[ size ] = hash;
+		size++;
+	}
+
+	@Override
+	public boolean hasFieldValue( String name ) {
+		int hash = hash( name );
+		int slot = wellKnownSlot( name, hash );
+		if( slot != -1 )
+			return knownnames[ slot ] != null;
+		return indexOf( name, hash ) != -1;
+	}
+
+	private static int wellKnownSlot( String name, int hash ) {
+		for( int i = 0 ; i < WELL_KNOWN.length ; i++ ) {
+			if( WELL_KNOWN_HASHES[ i ] == hash && ( WELL_KNOWN[ i ] == name || WELL_KNOWN[ i ].equalsIgnoreCase( name ) ) )
+				return i;
+		}
+		return -1;
+	}
+
+	private int indexOf( String name, int hash ) {
+		for( int i = 0 ; i < size ; i++ ) {
+			if( hashes[ i ] == hash && names[ i ].equalsIgnoreCase( name ) )
+				return i;
+		}
+		return -1;
+	}
+
+	/** hash of the lower case name, consistent with String.equalsIgnoreCase */
+	private static int hash( String name ) {
+		int h = 0;
+		for( int i = 0 ; i < name.length() ; i++ ) {
+			char c = name.charAt( i );
+			if( c >= 'A' && c <= 'Z' )
+				c += 'a' - 'A';
+			else if( c >= 128 )
+				c = Character.toLowerCase( Character.toUpperCase( c ) );
+			h = 31 * h + c;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,18 @@
+package com.dn15.websocket.message;
+
+public class HandshakeFlatClient extends HandshakeFlat implements ClientHandshake {
+	private String resourceDescriptor = "*";
+
+	public HandshakeFlatClient() {
+	}
+
+	public void setResourceDescriptor( String resourceDescriptor ) throws IllegalArgumentException {
+		if(resourceDescriptor==null)
+			throw new IllegalArgumentException( "http resource descriptor must not be null" );
+		this.resourceDescriptor = resourceDescriptor;
+	}
+
+	public String getResourceDescriptor() {
+		return resourceDescriptor;
+	}
+}
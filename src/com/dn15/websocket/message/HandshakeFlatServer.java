@@ -0,0 +1,26 @@
+package com.dn15.websocket.message;
+
+public class HandshakeFlatServer extends HandshakeFlat implements ServerHandshake {
+	private short httpstatus;
+	private String httpstatusmessage;
+
+	public HandshakeFlatServer() {
+	}
+
+	public String getHttpStatusMessage() {
+		return httpstatusmessage;
+	}
+
+	public short getHttpStatus() {
+		return httpstatus;
+	}
+
+	public void setHttpStatusMessage( String message ) {
+		this.httpstatusmessage = message;
+	}
+
+	public void setHttpStatus( short status ) {
+		httpstatus = status;
+	}
+
+}
@@ -12,6 +12,10 @@ public class MessageImpl implements Message {
     protected Opcode optcode;
     private ByteBuffer unmaskedpayload;
     protected boolean transferemasked;
+    /** whether {@link #unmaskedpayload} has been allocated by {@link #append(Message)} */
+    private boolean ownspayload = false;
+    /** the pooled buffer {@link #unmaskedpayload} is a view of, if any */
+    private ByteBuffer payloadowner;
 
     public MessageImpl() {
     }
@@ -65,6 +69,21 @@ public class MessageImpl implements Message {
     @Override
     public void setPayload(ByteBuffer payload) throws WsIOException {
         unmaskedpayload = payload;
+        ownspayload = false;
+        payloadowner = null;
+    }
+
+    /**
+     * Returns the pooled buffer the payload is a view of. Whoever keeps the
+     * payload beyond the decoding of the frame has to
+     * {@link com.dn15.websocket.util.BufferPool#retain(ByteBuffer) retain} it.
+     */
+    public ByteBuffer getPayloadOwner() {
+        return payloadowner;
+    }
+
+    public void setPayloadOwner(ByteBuffer owner) {
+        payloadowner = owner;
     }
 
     @Override
@@ -72,31 +91,36 @@ public class MessageImpl implements Message {
         this.transferemasked = transferemasked;
     }
 
+    /**
+     * Appends the payload of <var>nextframe</var>. The payload buffer grows
+     * geometrically so that appending n fragments copies O(n) bytes in total.
+     */
     @Override
     public void append(Message nextframe) throws WsIOException {
-        ByteBuffer b = nextframe.getPayloadData();
+        ByteBuffer b = nextframe.getPayloadData().duplicate();
         if (unmaskedpayload == null) {
             unmaskedpayload = ByteBuffer.allocate(b.remaining());
-            b.mark();
             unmaskedpayload.put(b);
-            b.reset();
+            unmaskedpayload.flip();
+            ownspayload = true;
+            payloadowner = null;
         } else {
-            b.mark();
-            unmaskedpayload.position(unmaskedpayload.limit());
-            unmaskedpayload.limit(unmaskedpayload.capacity());
-
-            if (b.remaining() > unmaskedpayload.remaining()) {
-                ByteBuffer tmp = ByteBuffer.allocate(b.remaining() + unmaskedpayload.capacity());
-                unmaskedpayload.flip();
-                tmp.put(unmaskedpayload);
-                tmp.put(b);
+            int size = unmaskedpayload.remaining();
+            // a payload which is not owned may be a view of a receive buffer
+            if (!ownspayload || unmaskedpayload.capacity() - unmaskedpayload.limit() < b.remaining()) {
+                ByteBuffer tmp = ByteBuffer.allocate(Math.max(size + b.remaining(), 2 * size));
+                tmp.put(unmaskedpayload.duplicate());
+                tmp.flip();
                 unmaskedpayload = tmp;
-
-            } else {
-                unmaskedpayload.put(b);
+                ownspayload = true;
+                payloadowner = null;
             }
-            unmaskedpayload.rewind();
-            b.reset();
+            int position = unmaskedpayload.position();
+            int limit = unmaskedpayload.limit();
+            unmaskedpayload.limit(limit + b.remaining());
+            unmaskedpayload.position(limit);
+            unmaskedpayload.put(b);
+            unmaskedpayload.position(position);
         }
         fin = nextframe.isFin();
     }
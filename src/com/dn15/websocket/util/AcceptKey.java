@@ -0,0 +1,104 @@
+package com.dn15.websocket.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the Sec-WebSocket-Accept value for a given Sec-WebSocket-Key as
+ * defined by http://tools.ietf.org/html/rfc6455#section-4.2.2<br>
+ * Every thread keeps its own SHA-1 digest and scratch buffers, so apart from
+ * the resulting String no object is allocated per handshake.
+ */
+public class AcceptKey {
+
+    public static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int SHA1_LENGTH = 20;
+
+    /** length of the Base64 encoding of {@link #SHA1_LENGTH} bytes */
+    private static final int ACCEPT_LENGTH = 28;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private static final ThreadLocal<AcceptKey> local = new ThreadLocal<AcceptKey>() {
+        @Override
+        protected AcceptKey initialValue() {
+            return new AcceptKey();
+        }
+    };
+
+    private final MessageDigest sha1;
+
+    /** the key followed by the GUID */
+    private byte[] input = new byte[64];
+
+    private final byte[] digest = new byte[SHA1_LENGTH];
+
+    private final char[] encoded = new char[ACCEPT_LENGTH];
+
+    private AcceptKey() {
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param key
+     *            the value of the Sec-WebSocket-Key header. Leading and
+     *            trailing whitespace is ignored.
+     * @return the value of the Sec-WebSocket-Accept header
+     */
+    public static String compute(String key) {
+        return local.get().accept(key);
+    }
+
+    private String accept(String key) {
+        int start = 0;
+        int end = key.length();
+        while (start < end && key.charAt(start) <= ' ')
+            start++;
+        while (end > start && key.charAt(end - 1) <= ' ')
+            end--;
+        int len = end - start + GUID.length();
+        if (input.length < len)
+            input = new byte[len];
+        int pos = 0;
+        for (int i = start; i < end; i++)
+            input[pos++] = (byte) key.charAt(i);
+        for (int i = 0; i < GUID.length(); i++)
+            input[pos++] = (byte) GUID.charAt(i);
+        sha1.update(input, 0, len);
+        try {
+            sha1.digest(digest, 0, SHA1_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        encode(digest, encoded);
+        return new String(encoded);
+    }
+
+    /**
+     * Base64 encodes the 20 bytes of a SHA-1 digest into the 28 chars of
+     * <var>dst</var> ( including the padding ).
+     */
+    static void encode(byte[] src, char[] dst) {
+        int d = 0;
+        int s = 0;
+        for (; s < 18; s += 3) {
+            int bits = (src[s] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | src[s + 2] & 0xFF;
+            dst[d++] = BASE64[bits >>> 18];
+            dst[d++] = BASE64[bits >>> 12 & 0x3F];
+            dst[d++] = BASE64[bits >>> 6 & 0x3F];
+            dst[d++] = BASE64[bits & 0x3F];
+        }
+        int bits = (src[18] & 0xFF) << 16 | (src[19] & 0xFF) << 8;
+        dst[d++] = BASE64[bits >>> 18];
+        dst[d++] = BASE64[bits >>> 12 & 0x3F];
+        dst[d++] = BASE64[bits >>> 6 & 0x3F];
+        dst[d] = '=';
+    }
+}
@@ -0,0 +1,322 @@
+package com.dn15.websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of {@link ByteBuffer}s of a few fixed size classes.<br>
+ * A buffer is taken with {@link #acquire(int)} and handed back with
+ * {@link #release(ByteBuffer)} once nobody references it anymore. Released
+ * buffers are first kept in a small cache of the releasing thread and then in
+ * a shared queue per size class. Requests bigger than the largest size class
+ * are served by plain allocations which are not pooled.<br>
+ * The pool remembers which of its buffers are acquired. Only those are taken
+ * back, so a buffer of someone else or a buffer released twice never ends up
+ * with two owners. A buffer can be {@link #retain(ByteBuffer) retained} by
+ * further owners, it returns to the pool with the release of the last one.
+ */
+public class BufferPool {
+
+    /** The capacities of the pooled buffers in ascending order */
+    public static final int[] SIZE_CLASSES = { 512, 8192, 65536 };
+
+    /** Max number of buffers per size class cached by a single thread */
+    public static int THREAD_CACHE_SIZE = 32;
+
+    /** Max number of buffers per size class kept in the shared queues */
+    public static int SHARED_CACHE_SIZE = 4096;
+
+    /** Number of locks the set of acquired buffers is split into */
+    private static final int STRIPES = 64;
+
+    private static volatile BufferPool defaultPool = new BufferPool(false);
+
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the pool used by the server, the readers and the drafts. Must
+     * be called before the server is started.
+     */
+    public static void setDefault(BufferPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("pool must not be null");
+        defaultPool = pool;
+    }
+
+    private final boolean direct;
+
+    private final List<Queue<ByteBuffer>> shared;
+
+    private final AtomicInteger[] sharedsize;
+
+    private final ThreadLocal<ThreadCache> threadcache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /** the reference counts of the buffers currently acquired, by identity and split by identity hash */
+    private final List<Map<ByteBuffer, Integer>> owned;
+
+    private volatile boolean leakDetection = false;
+
+    /** allocation sites of the buffers currently acquired ( leak detection ) */
+    private final Map<ByteBuffer, Throwable> acquired = Collections
+            .synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+    /**
+     * @param direct
+     *            whether the pooled buffers are allocated outside of the heap
+     */
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        shared = new ArrayList<Queue<ByteBuffer>>(SIZE_CLASSES.length);
+        sharedsize = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            shared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            sharedsize[i] = new AtomicInteger();
+        }
+        owned = new ArrayList<Map<ByteBuffer, Integer>>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            owned.add(new IdentityHashMap<ByteBuffer, Integer>());
+    }
+
+    /**
+     * Returns a cleared buffer whose limit is <var>size</var>. Its capacity
+     * may be bigger.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size");
+        int sc = sizeClass(size);
+        if (sc == -1) {
+            misses.incrementAndGet();
+            return allocate(size);
+        }
+        ByteBuffer buf = threadcache.get().pop(sc);
+        if (buf == null) {
+            buf = shared.get(sc).poll();
+            if (buf != null)
+                sharedsize[sc].decrementAndGet();
+        }
+        if (buf == null) {
+            misses.incrementAndGet();
+            buf = allocate(SIZE_CLASSES[sc]);
+        } else {
+            hits.incrementAndGet();
+        }
+        buf.clear();
+        buf.limit(size);
+        take(buf);
+        outstanding.incrementAndGet();
+        if (leakDetection)
+            acquired.put(buf, new Throwable("Buffer of " + size + " bytes acquired here"));
+        return buf;
+    }
+
+    /**
+     * Hands a buffer obtained by {@link #acquire(int)} back to the pool once
+     * every owner has released it. The caller must not use the buffer
+     * afterwards. Buffers which are not
+     * currently acquired from this pool ( e.g. oversized allocations, slices,
+     * read only views, buffers of the caller or buffers released already )
+     * are ignored.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isReadOnly() || buf.isDirect() != direct)
+            return;
+        int sc = exactSizeClass(buf.capacity());
+        if (sc == -1)
+            return;
+        int references = giveBack(buf);
+        if (references < 0) {
+            if (leakDetection)
+                Log.w("Release of a buffer which is not acquired from this pool");
+            return;
+        }
+        if (references > 0)
+            return;
+        if (leakDetection)
+            acquired.remove(buf);
+        outstanding.decrementAndGet();
+        buf.clear();
+        if (threadcache.get().push(sc, buf))
+            return;
+        if (sharedsize[sc].incrementAndGet() > SHARED_CACHE_SIZE) {
+            sharedsize[sc].decrementAndGet();
+            return;// let the gc take care of it
+        }
+        shared.get(sc).add(buf);
+    }
+
+    /**
+     * Takes a buffer acquired from this pool out of the pool's responsibility.
+     * Used for buffers which are shared by several owners and are therefore
+     * never released.
+     */
+    public void detach(ByteBuffer buf) {
+        if (buf == null || buf.isReadOnly() || buf.isDirect() != direct || exactSizeClass(buf.capacity()) == -1)
+            return;
+        Map<ByteBuffer, Integer> m = stripe(buf);
+        synchronized (m) {
+            if (m.remove(buf) == null)
+                return;
+        }
+        if (leakDetection)
+            acquired.remove(buf);
+        outstanding.decrementAndGet();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Enables recording where every buffer has been acquired. Only buffers
+     * acquired while the detection is enabled are tracked.
+     */
+    public void setLeakDetection(boolean enabled) {
+        if (!enabled)
+            acquired.clear();
+        leakDetection = enabled;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Returns the allocation sites of all tracked buffers which have not been
+     * released yet.
+     */
+    public Collection<Throwable> getLeaks() {
+        synchronized (acquired) {
+            return new ArrayList<Throwable>(acquired.values());
+        }
+    }
+
+    /** Number of acquisitions served by a cached buffer */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Number of acquisitions which required a new allocation */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Number of pooled buffers acquired but not released yet */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Adds an owner to a buffer acquired from this pool, e.g. to keep views of
+     * it beyond the release of its first owner. Every owner has to release
+     * it.
+     *
+     * @return false if <var>buf</var> is not currently acquired from this
+     *         pool, the caller has to copy the content it wants to keep then
+     */
+    public boolean retain(ByteBuffer buf) {
+        if (buf == null)
+            return false;
+        Map<ByteBuffer, Integer> m = stripe(buf);
+        synchronized (m) {
+            Integer references = m.get(buf);
+            if (references == null)
+                return false;
+            m.put(buf, references + 1);
+            return true;
+        }
+    }
+
+    private Map<ByteBuffer, Integer> stripe(ByteBuffer buf) {
+        return owned.get((System.identityHashCode(buf) & Integer.MAX_VALUE) % STRIPES);
+    }
+
+    private void take(ByteBuffer buf) {
+        Map<ByteBuffer, Integer> m = stripe(buf);
+        synchronized (m) {
+            m.put(buf, 1);
+        }
+    }
+
+    /**
+     * Drops a reference to <var>buf</var>.
+     *
+     * @return the references left or -1 if <var>buf</var> is not acquired
+     */
+    private int giveBack(ByteBuffer buf) {
+        Map<ByteBuffer, Integer> m = stripe(buf);
+        synchronized (m) {
+            Integer references = m.get(buf);
+            if (references == null)
+                return -1;
+            if (references == 1) {
+                m.remove(buf);
+                return 0;
+            }
+            m.put(buf, references - 1);
+            return references - 1;
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private static class ThreadCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[SIZE_CLASSES.length][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[SIZE_CLASSES.length];
+
+        ByteBuffer pop(int sc) {
+            if (counts[sc] == 0)
+                return null;
+            ByteBuffer buf = stacks[sc][--counts[sc]];
+            stacks[sc][counts[sc]] = null;
+            return buf;
+        }
+
+        boolean push(int sc, ByteBuffer buf) {
+            if (counts[sc] == stacks[sc].length)
+                return false;
+            stacks[sc][counts[sc]++] = buf;
+            return true;
+        }
+    }
+}
@@ -2,10 +2,12 @@ package com.dn15.websocket.util;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.List;
 
 import com.dn15.websocket.exception.WsIOException;
 import com.dn15.websocketapi.CloseReason.CloseCodes;
@@ -14,6 +16,27 @@ public class CharsetStringConverter {
 
     public static CodingErrorAction codingErrorAction = CodingErrorAction.REPORT;
 
+    /** per thread char buffers bigger than this are not kept for reuse */
+    public static int MAX_CACHED_CHARS = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final ThreadLocal<CharsetDecoder> decoder = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return UTF8.newDecoder();
+        }
+    };
+
+    private static final ThreadLocal<CharBuffer> chars = new ThreadLocal<CharBuffer>() {
+        @Override
+        protected CharBuffer initialValue() {
+            return CharBuffer.allocate(256);
+        }
+    };
+
     /*
      * @return UTF-8 encoding in bytes
      */
@@ -52,22 +75,139 @@ public class CharsetStringConverter {
         return stringUtf8(ByteBuffer.wrap(bytes));
     }
 
+    /**
+     * Decodes the remaining bytes of <var>bytes</var> without changing its
+     * position. Pure ASCII is copied directly. Anything else is validated by
+     * {@link Utf8Validator} ( unless {@link #codingErrorAction} has been
+     * changed ) and decoded by a decoder cached per thread.
+     */
     public static String stringUtf8(ByteBuffer bytes) throws WsIOException {
-        CharsetDecoder decode = Charset.forName("UTF8").newDecoder();
+        if (isAscii(bytes))
+            return stringAscii(bytes);
+        if (codingErrorAction == CodingErrorAction.REPORT && !Utf8Validator.isValid(bytes))
+            throw new WsIOException(CloseCodes.NOT_CONSISTENT, "Invalid UTF-8");
+        CharsetDecoder decode = decoder.get();
+        decode.reset();
         decode.onMalformedInput(codingErrorAction);
         decode.onUnmappableCharacter(codingErrorAction);
-        // decode.replaceWith( "X" );
-        String s;
-        try {
-            bytes.mark();
-            s = decode.decode(bytes).toString();
-            bytes.reset();
-        } catch (CharacterCodingException e) {
-            throw new WsIOException(CloseCodes.NOT_CONSISTENT, e.getMessage());
+        CharBuffer out = chars.get();
+        if (out.capacity() < bytes.remaining()) {
+            // a byte never decodes to more than one char
+            out = CharBuffer.allocate(bytes.remaining());
+            chars.set(out);
+        }
+        out.clear();
+        ByteBuffer in = bytes.duplicate();
+        CoderResult result = decode.decode(in, out, true);
+        if (!result.isError())
+            result = decode.flush(out);
+        if (result.isError())
+            throw new WsIOException(CloseCodes.NOT_CONSISTENT, result.toString());
+        String s = new String(out.array(), 0, out.position());
+        if (out.capacity() > MAX_CACHED_CHARS)
+            chars.remove();
+        return s;
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>parts</var> as one text without
+     * gathering them into a single buffer first. The text must have been
+     * validated by {@link Utf8Validator} as a whole.
+     */
+    public static String stringUtf8(List<ByteBuffer> parts) throws WsIOException {
+        if (parts.size() == 1)
+            return stringUtf8(parts.get(0));
+        int size = 0;
+        for (ByteBuffer part : parts)
+            size += part.remaining();
+        CharBuffer out = chars.get();
+        if (out.capacity() < size) {
+            out = CharBuffer.allocate(size);
+            chars.set(out);
         }
+        out.clear();
+        ByteBuffer carry = null;
+        for (ByteBuffer part : parts)
+            carry = decodeUtf8(carry, part, out);
+        if (carry != null)
+            throw new WsIOException(CloseCodes.NOT_CONSISTENT, "Incomplete UTF-8");
+        String s = new String(out.array(), 0, out.position());
+        if (out.capacity() > MAX_CACHED_CHARS)
+            chars.remove();
         return s;
     }
 
+    /**
+     * Decodes one part of a validated UTF-8 text into <var>out</var> with the
+     * decoder cached per thread, without changing the position of
+     * <var>part</var>. <var>carry</var> holds the bytes of a code point begun
+     * by the previous part or is null. <var>out</var> needs room for one char
+     * per byte.
+     * 
+     * @return the bytes of a code point which continues in the next part or
+     *         null
+     */
+    public static ByteBuffer decodeUtf8(ByteBuffer carry, ByteBuffer part, CharBuffer out) throws WsIOException {
+        CharsetDecoder decode = decoder.get();
+        decode.reset();
+        decode.onMalformedInput(codingErrorAction);
+        decode.onUnmappableCharacter(codingErrorAction);
+        ByteBuffer in = part.duplicate();
+        if (carry != null) {
+            // complete the code point with at most 3 bytes of this part
+            int carried = carry.remaining();
+            ByteBuffer joined = ByteBuffer.allocate(carried + Math.min(3, in.remaining()));
+            joined.put(carry.duplicate());
+            ByteBuffer head = in.duplicate();
+            head.limit(head.position() + joined.remaining());
+            joined.put(head);
+            joined.flip();
+            check(decode.decode(joined, out, false));
+            if (joined.position() < carried) {
+                joined.rewind();
+                return joined;
+            }
+            in.position(in.position() + joined.position() - carried);
+        }
+        check(decode.decode(in, out, false));
+        if (!in.hasRemaining())
+            return null;
+        ByteBuffer rest = ByteBuffer.allocate(in.remaining());
+        rest.put(in);
+        rest.flip();
+        return rest;
+    }
+
+    private static void check(CoderResult result) throws WsIOException {
+        if (result.isError())
+            throw new WsIOException(CloseCodes.NOT_CONSISTENT, result.toString());
+    }
+
+    private static boolean isAscii(ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            byte[] array = bytes.array();
+            int end = bytes.arrayOffset() + bytes.limit();
+            for (int i = bytes.arrayOffset() + bytes.position(); i < end; i++) {
+                if (array[i] < 0)
+                    return false;
+            }
+        } else {
+            for (int i = bytes.position(); i < bytes.limit(); i++) {
+                if (bytes.get(i) < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static String stringAscii(ByteBuffer bytes) {
+        if (bytes.hasArray())
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), ASCII);
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return new String(copy, ASCII);
+    }
+
     public static void main(String[] args) throws WsIOException {
         stringUtf8(utf8Bytes("\0"));
         stringAscii(asciiBytes("\0"));
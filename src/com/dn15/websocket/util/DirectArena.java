@@ -0,0 +1,83 @@
+package com.dn15.websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size chunks of memory outside of the heap.<br>
+ * The chunks are slices of direct buffers of several chunks each, so that
+ * thousands of small regions do not need an allocation ( and a cleaner ) of
+ * their own. Freed chunks are reused. The slabs are never returned to the
+ * operating system.
+ */
+public class DirectArena {
+
+    private final int chunkSize;
+
+    private final int chunksPerSlab;
+
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger chunks = new AtomicInteger();
+
+    private final AtomicInteger used = new AtomicInteger();
+
+    public DirectArena(int chunkSize, int chunksPerSlab) {
+        if (chunkSize <= 0 || chunksPerSlab <= 0 || (long) chunkSize * chunksPerSlab > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid chunk size or count");
+        this.chunkSize = chunkSize;
+        this.chunksPerSlab = chunksPerSlab;
+    }
+
+    /** Returns a cleared chunk of {@link #getChunkSize()} bytes */
+    public ByteBuffer allocate() {
+        ByteBuffer chunk = free.poll();
+        if (chunk == null)
+            chunk = grow();
+        chunk.clear();
+        used.incrementAndGet();
+        return chunk;
+    }
+
+    /** Hands back a chunk of this arena. It must not be used afterwards. */
+    public void free(ByteBuffer chunk) {
+        if (chunk == null)
+            return;
+        if (chunk.capacity() != chunkSize || !chunk.isDirect())
+            throw new IllegalArgumentException("not a chunk of this arena");
+        used.decrementAndGet();
+        free.add(chunk);
+    }
+
+    private synchronized ByteBuffer grow() {
+        ByteBuffer chunk = free.poll();
+        if (chunk != null)
+            return chunk;
+        ByteBuffer slab = ByteBuffer.allocateDirect(chunkSize * chunksPerSlab);
+        for (int i = 1; i < chunksPerSlab; i++) {
+            slab.limit((i + 1) * chunkSize);
+            slab.position(i * chunkSize);
+            free.add(slab.slice());
+        }
+        slab.position(0);
+        slab.limit(chunkSize);
+        chunks.addAndGet(chunksPerSlab);
+        return slab.slice();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** Number of chunks in use */
+    public int getUsed() {
+        return used.get();
+    }
+
+    /** Number of bytes allocated by this arena */
+    public long getCapacity() {
+        return (long) chunks.get() * chunkSize;
+    }
+}
@@ -0,0 +1,92 @@
+package com.dn15.websocket.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of positive long values ( e.g. nanoseconds or queue
+ * depths ) in the spirit of HdrHistogram.<br>
+ * Values below 128 are counted exactly, larger values in log-linear buckets
+ * of 64 sub buckets per power of two, so a reported value is at most 1/64 (
+ * about 1.6% ) above the recorded one. Recording is a single atomic increment
+ * and may happen from any number of threads.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** values below are counted exactly */
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder total = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    public long getTotalCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which <var>percentile</var> percent of
+     * the recorded values are, e.g. 99.9 for the p999.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Forgets all recorded values, e.g. those recorded during the warmup */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.reset();
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /** the largest value counted in bucket <var>index</var> */
+    static long highestValue(int index) {
+        if (index < LINEAR)
+            return index;
+        int k = index - LINEAR;
+        int shift = k / SUB_BUCKETS + 1;
+        long lowest = (long) (SUB_BUCKETS + k % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
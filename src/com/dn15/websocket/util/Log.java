@@ -1,15 +1,335 @@
 package com.dn15.websocket.util;
 
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logger which hands its messages to a background thread.<br>
+ * A message below the {@link #setLevel(Level) current level} costs a single
+ * comparison: Its arguments are neither formatted nor converted to strings.
+ * Enabled messages are put into a fixed size ring and formatted and written
+ * by the appender thread, so the logging thread never waits for the console.
+ * If the ring is full the message is dropped and counted.<br>
+ * Messages are templates whose <tt>{}</tt> placeholders are replaced by the
+ * arguments, e.g. <code>Log.d("closing {} with {}", conn, code)</code>.
+ * Arguments are converted when the message is written, so they must not be
+ * changed after they have been logged.
+ */
 public class Log {
-    private static final int logLevel = 1;
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    /** Receives the formatted lines, from the appender thread only */
+    public interface Appender {
+        void append(String lines);
+    }
+
+    /** Number of messages the ring holds. Rounded up to a power of two */
+    public static int RING_SIZE = 8192;
+
+    /** Max time the appender thread sleeps when there is nothing to write */
+    public static long IDLE_PARK_NANOS = 1000000;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    private static volatile Appender appender = new Appender() {
+        @Override
+        public void append(String lines) {
+            PrintStream out = System.out;
+            out.print(lines);
+            out.flush();
+        }
+    };
+
+    private static final Ring ring = new Ring(RING_SIZE);
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.ordinal() <= threshold;
+    }
+
+    public static boolean isTraceEnabled() {
+        return Level.TRACE.ordinal() <= threshold;
+    }
+
+    public static void setAppender(Appender a) {
+        if (a == null)
+            throw new IllegalArgumentException("appender must not be null");
+        appender = a;
+    }
+
+    /** Number of messages dropped because the ring was full */
+    public static long getDropped() {
+        return ring.dropped.sum();
+    }
+
+    /**
+     * Waits until all messages logged so far have been written, at most
+     * <var>millis</var> milliseconds.
+     */
+    public static void flush(long millis) {
+        ring.flush(millis);
+    }
 
     public static final void e(Exception e) {
-        e.printStackTrace();
+        if (Level.ERROR.ordinal() <= threshold)
+            ring.add(Level.ERROR, String.valueOf(e.getMessage()), null, null, null, e);
     }
 
-    public static final void i(String i) {
-        if (logLevel > 0)
-            System.out.println(i);
+    public static void e(String message, Throwable t) {
+        if (Level.ERROR.ordinal() <= threshold)
+            ring.add(Level.ERROR, message, null, null, null, t);
     }
 
+    public static void e(String message, Object a) {
+        if (Level.ERROR.ordinal() <= threshold)
+            ring.add(Level.ERROR, message, a, null, null, null);
+    }
+
+    public static void w(String message) {
+        if (Level.WARN.ordinal() <= threshold)
+            ring.add(Level.WARN, message, null, null, null, null);
+    }
+
+    public static void w(String message, Object a) {
+        if (Level.WARN.ordinal() <= threshold)
+            ring.add(Level.WARN, message, a, null, null, null);
+    }
+
+    public static void w(String message, Object a, Object b) {
+        if (Level.WARN.ordinal() <= threshold)
+            ring.add(Level.WARN, message, a, b, null, null);
+    }
+
+    public static final void i(String message) {
+        if (Level.INFO.ordinal() <= threshold)
+            ring.add(Level.INFO, message, null, null, null, null);
+    }
+
+    public static void i(String message, Object a) {
+        if (Level.INFO.ordinal() <= threshold)
+            ring.add(Level.INFO, message, a, null, null, null);
+    }
+
+    public static void i(String message, Object a, Object b) {
+        if (Level.INFO.ordinal() <= threshold)
+            ring.add(Level.INFO, message, a, b, null, null);
+    }
+
+    public static void d(String message) {
+        if (Level.DEBUG.ordinal() <= threshold)
+            ring.add(Level.DEBUG, message, null, null, null, null);
+    }
+
+    public static void d(String message, Object a) {
+        if (Level.DEBUG.ordinal() <= threshold)
+            ring.add(Level.DEBUG, message, a, null, null, null);
+    }
+
+    public static void d(String message, Object a, Object b) {
+        if (Level.DEBUG.ordinal() <= threshold)
+            ring.add(Level.DEBUG, message, a, b, null, null);
+    }
+
+    public static void d(String message, Object a, Object b, Object c) {
+        if (Level.DEBUG.ordinal() <= threshold)
+            ring.add(Level.DEBUG, message, a, b, c, null);
+    }
+
+    public static void t(String message) {
+        if (Level.TRACE.ordinal() <= threshold)
+            ring.add(Level.TRACE, message, null, null, null, null);
+    }
+
+    public static void t(String message, Object a) {
+        if (Level.TRACE.ordinal() <= threshold)
+            ring.add(Level.TRACE, message, a, null, null, null);
+    }
+
+    public static void t(String message, Object a, Object b) {
+        if (Level.TRACE.ordinal() <= threshold)
+            ring.add(Level.TRACE, message, a, b, null, null);
+    }
+
+    private static final class Event {
+        /** the sequence this slot has been published for, -1 if never */
+        volatile long sequence = -1;
+        Level level;
+        long time;
+        String thread;
+        String message;
+        Object a, b, c;
+        Throwable error;
+    }
+
+    /**
+     * Ring of events written by any number of threads and read by the
+     * appender thread. A producer claims a sequence with a CAS on
+     * {@link #head} and publishes the filled slot by writing its sequence
+     * into it. The appender consumes the slots in sequence order and frees
+     * them by advancing {@link #tail}.
+     */
+    private static final class Ring implements Runnable {
+
+        private final Event[] slots;
+        private final int mask;
+
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        /** sequences below this have been handed to the appender */
+        private volatile long written = 0;
+
+        final LongAdder dropped = new LongAdder();
+
+        private volatile Thread thread;
+
+        Ring(int size) {
+            int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            slots = new Event[n];
+            for (int i = 0; i < n; i++)
+                slots[i] = new Event();
+            mask = n - 1;
+        }
+
+        void add(Level level, String message, Object a, Object b, Object c, Throwable error) {
+            long h;
+            do {
+                h = head.get();
+                if (h - tail.get() >= slots.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!head.compareAndSet(h, h + 1));
+            Event e = slots[(int) h & mask];
+            e.level = level;
+            e.time = System.currentTimeMillis();
+            e.thread = Thread.currentThread().getName();
+            e.message = message;
+            e.a = a;
+            e.b = b;
+            e.c = c;
+            e.error = error;
+            e.sequence = h;
+            if (thread == null)
+                start();
+        }
+
+        private synchronized void start() {
+            if (thread != null)
+                return;
+            Thread t = new Thread(this, "LogAppender");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    flush(1000);
+                }
+            });
+        }
+
+        void flush(long millis) {
+            long target = head.get();
+            long deadline = System.currentTimeMillis() + millis;
+            while (written < target && System.currentTimeMillis() < deadline) {
+                Thread t = thread;
+                if (t == null)
+                    return;
+                LockSupport.unpark(t);
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void run() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            Date date = new Date();
+            StringBuilder lines = new StringBuilder(4096);
+            long reported = 0;
+            while (true) {
+                long next = tail.get();
+                Event e = slots[(int) next & mask];
+                if (e.sequence != next) {
+                    long d = dropped.sum();
+                    if (d != reported) {
+                        lines.append("WARN ").append(d - reported).append(" log messages dropped\n");
+                        reported = d;
+                    }
+                    if (lines.length() > 0) {
+                        write(lines);
+                        written = next;
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                date.setTime(e.time);
+                lines.append(format.format(date)).append(' ').append(e.level).append(" [").append(e.thread)
+                        .append("] ");
+                format(lines, e.message, e.a, e.b, e.c);
+                lines.append('\n');
+                if (e.error != null) {
+                    StringWriter trace = new StringWriter();
+                    e.error.printStackTrace(new PrintWriter(trace));
+                    lines.append(trace);
+                }
+                e.message = null;
+                e.a = e.b = e.c = null;
+                e.error = null;
+                e.thread = null;
+                tail.lazySet(next + 1);
+                if (lines.length() >= 4096) {
+                    write(lines);
+                    written = next + 1;
+                }
+            }
+        }
+
+        private static void write(StringBuilder lines) {
+            try {
+                appender.append(lines.toString());
+            } catch (RuntimeException ex) {
+                // the appender must not stop the logging
+            }
+            lines.setLength(0);
+        }
+
+        private static void format(StringBuilder out, String message, Object a, Object b, Object c) {
+            if (message == null) {
+                out.append("null");
+                return;
+            }
+            int arg = 0;
+            int from = 0;
+            int at;
+            while (arg < 3 && (at = message.indexOf("{}", from)) != -1) {
+                out.append(message, from, at);
+                out.append(arg == 0 ? a : arg == 1 ? b : c);
+                arg++;
+                from = at + 2;
+            }
+            out.append(message, from, message.length());
+        }
+    }
 }
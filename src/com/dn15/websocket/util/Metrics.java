@@ -0,0 +1,271 @@
+package com.dn15.websocket.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.dn15.websocket.message.Message.Opcode;
+
+/**
+ * In-process counters and histograms of the server.<br>
+ * Counters are {@link LongAdder}s, so threads updating the same counter do
+ * not contend. Values which only exist at the time they are read ( e.g. the
+ * number of open sessions of a server ) are registered as {@link Gauge}s.
+ * The metrics can be read through {@link #dump()} or, once
+ * {@link #registerMBean()} has been called, over JMX.
+ */
+public class Metrics implements MetricsMBean {
+
+    /** Whether the server records metrics at all */
+    public static boolean ENABLED = true;
+
+    public static final String OBJECT_NAME = "com.dn15.websocket:type=Metrics";
+
+    private static final Metrics defaultMetrics = new Metrics();
+
+    public static Metrics getDefault() {
+        return defaultMetrics;
+    }
+
+    /** A value computed whenever the metrics are read */
+    public interface Gauge {
+        long value();
+    }
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder[] framesIn = adders(Opcode.values().length);
+    private final LongAdder[] framesOut = adders(Opcode.values().length);
+
+    /** nanoseconds a reactor spent handling the keys of one select */
+    private final Histogram selectorLoopTime = new Histogram();
+
+    /** connections queued to a worker, sampled whenever one is queued */
+    private final Histogram workerQueueDepth = new Histogram();
+
+    /** buffers in the outQueue of a connection, sampled whenever one is queued */
+    private final Histogram outQueueDepth = new Histogram();
+
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+    private final long started = System.nanoTime();
+
+    /** the handshake count and time of the previous {@link #dump()} */
+    private long lastHandshakes = 0;
+    private long lastDump = started;
+
+    private boolean registered = false;
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            a[i] = new LongAdder();
+        return a;
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+        handshakes.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void frameIn(Opcode op) {
+        framesIn[op.ordinal()].increment();
+    }
+
+    public void frameOut(Opcode op) {
+        framesOut[op.ordinal()].increment();
+    }
+
+    public void bytesRead(long n) {
+        bytesRead.add(n);
+    }
+
+    public void bytesWritten(long n) {
+        bytesWritten.add(n);
+    }
+
+    public void selectorLoop(long nanos) {
+        selectorLoopTime.record(nanos);
+    }
+
+    public void workerQueued(int depth) {
+        workerQueueDepth.record(depth);
+    }
+
+    public void outQueued(int depth) {
+        outQueueDepth.record(depth);
+    }
+
+    /** Adds or replaces the gauge <var>name</var> */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregister(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * {@link #OBJECT_NAME}. Calling it more than once has no effect.
+     */
+    public synchronized void registerMBean() {
+        if (registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(this, name);
+            registered = true;
+        } catch (JMException e) {
+            Log.e(e);
+        }
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    @Override
+    public double getHandshakesPerSecond() {
+        return handshakes.sum() / ((System.nanoTime() - started) / 1e9);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return sum(framesIn);
+    }
+
+    @Override
+    public long getFramesOut() {
+        return sum(framesOut);
+    }
+
+    public long getFramesIn(Opcode op) {
+        return framesIn[op.ordinal()].sum();
+    }
+
+    public long getFramesOut(Opcode op) {
+        return framesOut[op.ordinal()].sum();
+    }
+
+    @Override
+    public long getSelectorLoopP99Nanos() {
+        return selectorLoopTime.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getWorkerQueueDepthP99() {
+        return workerQueueDepth.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getOutQueueDepthP99() {
+        return outQueueDepth.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return BufferPool.getDefault().getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.getDefault().getMisses();
+    }
+
+    public Histogram getSelectorLoopTime() {
+        return selectorLoopTime;
+    }
+
+    public Histogram getWorkerQueueDepth() {
+        return workerQueueDepth;
+    }
+
+    public Histogram getOutQueueDepth() {
+        return outQueueDepth;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long s = 0;
+        for (LongAdder a : adders)
+            s += a.sum();
+        return s;
+    }
+
+    /** Returns all metrics as plain text, one per line */
+    @Override
+    public synchronized String dump() {
+        long now = System.nanoTime();
+        long hs = handshakes.sum();
+        double rate = now == lastDump ? 0 : (hs - lastHandshakes) / ((now - lastDump) / 1e9);
+        lastHandshakes = hs;
+        lastDump = now;
+
+        StringBuilder b = new StringBuilder(1024);
+        line(b, "connections.opened", connectionsOpened.sum());
+        line(b, "connections.closed", connectionsClosed.sum());
+        line(b, "handshakes", hs);
+        b.append("handshakes.per_second ").append(String.format("%.1f", rate)).append('\n');
+        for (Opcode op : Opcode.values())
+            line(b, "frames.in." + op.name().toLowerCase(), framesIn[op.ordinal()].sum());
+        for (Opcode op : Opcode.values())
+            line(b, "frames.out." + op.name().toLowerCase(), framesOut[op.ordinal()].sum());
+        line(b, "bytes.read", bytesRead.sum());
+        line(b, "bytes.written", bytesWritten.sum());
+        histogram(b, "selector.loop_nanos", selectorLoopTime);
+        histogram(b, "worker.queue_depth", workerQueueDepth);
+        histogram(b, "connection.outqueue_depth", outQueueDepth);
+        line(b, "bufferpool.hits", getBufferPoolHits());
+        line(b, "bufferpool.misses", getBufferPoolMisses());
+        for (Map.Entry<String, Gauge> g : gauges.entrySet())
+            line(b, g.getKey(), g.getValue().value());
+        return b.toString();
+    }
+
+    private static void line(StringBuilder b, String name, long value) {
+        b.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder b, String name, Histogram h) {
+        line(b, name + ".count", h.getTotalCount());
+        line(b, name + ".p50", h.getValueAtPercentile(50));
+        line(b, name + ".p99", h.getValueAtPercentile(99));
+        line(b, name + ".p999", h.getValueAtPercentile(99.9));
+        line(b, name + ".max", h.getMax());
+    }
+}
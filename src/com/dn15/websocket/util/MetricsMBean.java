@@ -0,0 +1,37 @@
+package com.dn15.websocket.util;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getHandshakes();
+
+    /** average since the metrics have been created */
+    double getHandshakesPerSecond();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getSelectorLoopP99Nanos();
+
+    long getWorkerQueueDepthP99();
+
+    long getOutQueueDepthP99();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    /** all metrics as plain text */
+    String dump();
+}
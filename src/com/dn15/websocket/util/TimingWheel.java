@@ -0,0 +1,194 @@
+package com.dn15.websocket.util;
+
+/**
+ * Hierarchical hashed timing wheel.<br>
+ * Time is divided into ticks. Every level of the wheel has 64 slots, a slot
+ * of level <var>n</var> spans 64<sup>n</sup> ticks. A timeout is linked into
+ * the slot of the coarsest level in which its deadline differs from the
+ * current tick and cascades down a level whenever the wheel reaches that
+ * slot. Scheduling and cancelling are O(1), advancing costs O(1) per tick
+ * plus the timeouts which expire or cascade.<br>
+ * The wheel is not thread safe: It is meant to be owned by the thread of a
+ * selector loop which {@link #advance(long) advances} it once per select.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** 64^5 ticks, about 3 years with a tick of 100ms */
+    private static final int LEVELS = 5;
+
+    /**
+     * An action to be run when its deadline has passed. A timeout can be
+     * scheduled in one wheel at a time and be rescheduled as often as needed.
+     */
+    public abstract static class Timeout {
+        private long deadline;
+        private int level = -1;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        /**
+         * Called by {@link TimingWheel#advance(long)} once the deadline has
+         * passed. The timeout may schedule itself again.
+         *
+         * @param now
+         *            the time passed to advance, in nanoseconds
+         */
+        protected abstract void expire(long now);
+
+        public boolean isScheduled() {
+            return level != -1;
+        }
+    }
+
+    private final long tickNanos;
+
+    /** the time of tick 0, so that ticks are never negative */
+    private final long origin;
+
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+
+    /** the current tick, every deadline up to it has expired */
+    private long tick;
+
+    private int size = 0;
+
+    /** timeouts expiring in the current advance, linked by next */
+    private Timeout expired = null;
+
+    public TimingWheel(long tickNanos, long now) {
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("the tick must be positive");
+        this.tickNanos = tickNanos;
+        this.origin = now;
+        this.tick = 0;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /** Returns the number of scheduled timeouts */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules <var>t</var> to expire at <var>deadline</var> or within one
+     * tick after it. A deadline in the past expires with the next tick. If
+     * <var>t</var> is scheduled already it is moved.
+     *
+     * @param deadline
+     *            in nanoseconds, on the same clock as the time passed to
+     *            {@link #advance(long)}
+     */
+    public void schedule(Timeout t, long deadline) {
+        if (t.isScheduled())
+            cancel(t);
+        // round up so that a timeout never expires early
+        long d = deadline - origin <= 0 ? 0 : (deadline - origin + tickNanos - 1) / tickNanos;
+        t.deadline = d > tick ? d : tick + 1;
+        link(t);
+        size++;
+    }
+
+    /** Unschedules <var>t</var>. Has no effect if it is not scheduled. */
+    public void cancel(Timeout t) {
+        if (!t.isScheduled())
+            return;
+        if (t.prev == null)
+            wheel[t.level][t.slot] = t.next;
+        else
+            t.prev.next = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.level = -1;
+        size--;
+    }
+
+    /**
+     * Moves the wheel forward to <var>now</var> and expires all timeouts whose
+     * deadline has passed, in the order of their deadlines.
+     *
+     * @param now
+     *            the current time in nanoseconds, e.g. {@link System#nanoTime()}
+     */
+    public void advance(long now) {
+        long target = (now - origin) / tickNanos;
+        while (tick < target) {
+            if (size == 0) {
+                tick = target;
+                break;
+            }
+            tick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0)
+                    cascade(level, (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+            }
+            int slot = (int) tick & SLOT_MASK;
+            Timeout t = wheel[0][slot];
+            wheel[0][slot] = null;
+            while (t != null) {
+                Timeout n = t.next;
+                unlinked(t);
+                t.next = expired;
+                expired = t;
+                t = n;
+            }
+            runExpired(now);
+        }
+    }
+
+    /** Re-links the timeouts of a slot the wheel has reached to finer levels */
+    private void cascade(int level, int slot) {
+        Timeout t = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (t != null) {
+            Timeout n = t.next;
+            t.prev = t.next = null;
+            if (t.deadline <= tick) {
+                unlinked(t);
+                t.next = expired;
+                expired = t;
+            } else {
+                link(t);
+            }
+            t = n;
+        }
+    }
+
+    private void runExpired(long now) {
+        while (expired != null) {
+            Timeout t = expired;
+            expired = t.next;
+            t.next = null;
+            t.expire(now);
+        }
+    }
+
+    private void unlinked(Timeout t) {
+        t.prev = null;
+        t.level = -1;
+        size--;
+    }
+
+    private void link(Timeout t) {
+        long diff = t.deadline ^ tick;
+        int level = (63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+        if (level >= LEVELS)
+            level = LEVELS - 1;
+        int slot = (int) (t.deadline >>> (level * SLOT_BITS)) & SLOT_MASK;
+        t.level = level;
+        t.slot = slot;
+        t.prev = null;
+        t.next = wheel[level][slot];
+        if (t.next != null)
+            t.next.prev = t;
+        wheel[level][slot] = t;
+    }
+}
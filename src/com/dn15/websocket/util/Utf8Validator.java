@@ -0,0 +1,97 @@
+package com.dn15.websocket.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming UTF-8 validator based on the DFA by Bjoern Hoehrmann (
+ * http://bjoern.hoehrmann.de/utf-8/decoder/dfa/ ).<br>
+ * The bytes of a text message can be fed in as many pieces as they arrive (
+ * e.g. frame by frame ). A piece may end in the middle of a code point; the
+ * message is invalid as soon as {@link #update(ByteBuffer)} returns false and
+ * must end in {@link #isComplete() a complete state}. Overlong encodings,
+ * surrogates and code points above U+10FFFF are rejected as required by
+ * RFC 6455.
+ */
+public class Utf8Validator {
+
+    public static final int ACCEPT = 0;
+
+    public static final int REJECT = 12;
+
+    /** maps every byte to its character class */
+    private static final byte[] CLASSES = new byte[256];
+
+    /** maps a state plus a character class to the next state */
+    private static final byte[] TRANSITIONS = { 0, 12, 24, 36, 60, 96, 84, 12, 12, 12, 48, 72, 12, 12, 12, 12, 12,
+            12, 12, 12, 12, 12, 12, 12, 12, 0, 12, 12, 12, 12, 12, 0, 12, 0, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24,
+            12, 24, 12, 12, 12, 12, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 12, 12, 24,
+            12, 12, 12, 12, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12, 12, 36, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+            12, 36, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12 };
+
+    static {
+        classes(0x80, 0x8F, 1);
+        classes(0x90, 0x9F, 9);
+        classes(0xA0, 0xBF, 7);
+        classes(0xC0, 0xC1, 8);
+        classes(0xC2, 0xDF, 2);
+        classes(0xE0, 0xE0, 10);
+        classes(0xE1, 0xEF, 3);
+        classes(0xED, 0xED, 4);
+        classes(0xF0, 0xF0, 11);
+        classes(0xF1, 0xF3, 6);
+        classes(0xF4, 0xF4, 5);
+        classes(0xF5, 0xFF, 8);
+    }
+
+    private static void classes(int from, int to, int cls) {
+        for (int i = from; i <= to; i++)
+            CLASSES[i] = (byte) cls;
+    }
+
+    private int state = ACCEPT;
+
+    /**
+     * Validates the remaining bytes of <var>buf</var> as continuation of the
+     * bytes validated before. The position of <var>buf</var> is not changed.
+     *
+     * @return false if the bytes validated so far can not be valid UTF-8
+     *         anymore
+     */
+    public boolean update(ByteBuffer buf) {
+        state = run(state, buf);
+        return state != REJECT;
+    }
+
+    /**
+     * Whether all bytes validated so far form complete and valid code points.
+     */
+    public boolean isComplete() {
+        return state == ACCEPT;
+    }
+
+    public void reset() {
+        state = ACCEPT;
+    }
+
+    /**
+     * Whether the remaining bytes of <var>buf</var> are complete and valid
+     * UTF-8. The position of <var>buf</var> is not changed.
+     */
+    public static boolean isValid(ByteBuffer buf) {
+        return run(ACCEPT, buf) == ACCEPT;
+    }
+
+    private static int run(int state, ByteBuffer buf) {
+        if (buf.hasArray()) {
+            byte[] bytes = buf.array();
+            int end = buf.arrayOffset() + buf.limit();
+            for (int i = buf.arrayOffset() + buf.position(); i < end && state != REJECT; i++)
+                state = TRANSITIONS[state + CLASSES[bytes[i] & 0xFF]];
+        } else {
+            int end = buf.limit();
+            for (int i = buf.position(); i < end && state != REJECT; i++)
+                state = TRANSITIONS[state + CLASSES[buf.get(i) & 0xFF]];
+        }
+        return state;
+    }
+}